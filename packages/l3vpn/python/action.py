@@ -1,6 +1,11 @@
 # -*- mode: python; python-indent: 4 -*-
 import ncs
+import hashlib
+import os
 import re
+import socket
+import time
+import threading
 import ipaddress
 from ncs.dp import Action
 
@@ -14,20 +19,206 @@ OPER = {
 }
 
 class DiffIterator(object):
-    def __init__(self):
-         self.count = 0
-         self.changes = []
+    """Passes every change to sink(index, op, kp, oldv, newv) as it is
+    iterated, the changes are not kept."""
+    def __init__(self, sink=None):
+        self.count = 0
+        self.sink = sink
     def __call__(self, kp, op, oldv, newv):
-        info = {
-            "kp": str(kp),
-            "op": OPER[op],
-            "oldv": oldv,
-            "newv": newv
-        }
-        self.changes.append(info)
+        if self.sink is not None:
+            self.sink(self.count, OPER[op], str(kp), oldv, newv)
         self.count += 1
         return ncs.ITER_RECURSE
 
+class DryRunReport(object):
+    """Puts the dry-run device diffs and service changes in the action
+    output, limit entries of each starting at offset, and writes all of
+    them to file if given, as they are produced."""
+    def __init__(self, output, offset, limit, file=None):
+        self.output = output
+        self.first = offset
+        self.last = offset + limit
+        self.file = file
+        self.devices = 0
+        self.changes = 0
+    
+    def device(self, name, data):
+        if self.file is not None:
+            self.file.write("Device: %s \n%s\n" % (name, data))
+        if self.first <= self.devices < self.last:
+            self.output.device_diff.create(name).data = str(data)
+        self.devices += 1
+    
+    def change(self, index, op, kp, oldv, newv):
+        if self.file is not None:
+            self.file.write("Operation: %s - KeyPath: %s - Old Value: %s"
+                            " - New Value: %s \n" % (op, kp, oldv, newv))
+        if self.first <= index < self.last:
+            change = self.output.service_change.create(index)
+            change.op = op
+            change.keypath = kp
+            if oldv is not None:
+                change.old_value = str(oldv)
+            if newv is not None:
+                change.new_value = str(newv)
+        self.changes += 1
+
+class RdIndex(object):
+    """Route distinguishers configured on the PE devices, by VRF or
+    routing-instance name (Junos, IOS-XR) and by VPRN service id (ALU).
+
+    Like walking the PEs in device group order, the first PE having the
+    VPN wins."""
+    def __init__(self):
+        self.by_name = {}
+        self.by_asn = {}
+
+    def add_name(self, order, name, rd):
+        if rd and name not in self.by_name:
+            self.by_name[name] = (order, rd.split(':')[0])
+
+    def add_asn(self, order, asn, rd):
+        if rd and str(asn) not in self.by_asn:
+            self.by_asn[str(asn)] = (order, rd.split(':')[0])
+
+    def lookup(self, service_name, asn):
+        found = [e for e in (self.by_name.get(service_name),
+                             self.by_asn.get(str(asn))) if e]
+        if not found:
+            return None
+        return min(found)[1]
+
+    def __len__(self):
+        return len(self.by_name) + len(self.by_asn)
+
+def discovery_hash(device):
+    """Hash of the CPE config a discovery analyses: the BGP neighbors,
+    the policy-maps and the GigabitEthernet interfaces. Raises an
+    exception if the device is not an IOS device."""
+    config = device.config
+    h = hashlib.sha1()
+    for asn in config.ios__router.bgp:
+        h.update(('bgp %s\n' % asn.as_no).encode('utf-8'))
+        for neighbor in asn.neighbor:
+            h.update(('neighbor %s\n' % neighbor.id).encode('utf-8'))
+    for policy_map in config.ios__policy_map:
+        bit_rate = None
+        if 'class-default' in policy_map.ios__class:
+            bit_rate = policy_map.ios__class['class-default'].\
+                       shape.average.bit_rate
+        h.update(('policy-map %s %s\n' % (policy_map.name, bit_rate)).
+                 encode('utf-8'))
+    for interface in config.ios__interface.GigabitEthernet:
+        primary = interface.ip.address.primary
+        h.update(('interface %s %s %s %s\n' %
+                  (interface.name, interface.description, primary.address,
+                   primary.mask)).encode('utf-8'))
+    return h.hexdigest()
+
+DISCOVERY_USER = '/l3vpn:vpn/discovery-user'
+
+def discovery_user():
+    """The user in /vpn/discovery-user, read directly from CDB."""
+    sock = socket.socket()
+    ncs.cdb.connect(sock, ncs.cdb.DATA_SOCKET, '127.0.0.1', ncs.NCS_PORT)
+    try:
+        ncs.cdb.start_session(sock, ncs.cdb.RUNNING)
+        try:
+            return str(ncs.cdb.get(sock, DISCOVERY_USER))
+        finally:
+            ncs.cdb.end_session(sock)
+    finally:
+        ncs.cdb.close(sock)
+
+class DeviceChangeSubscriber(ncs.cdb.Subscriber):
+    """Counts the config changes of every device that matter to a
+    discovery in /vpn/discovery/device{name}/generation, so that
+    discovery can tell which CPEs changed since they were last
+    analysed.
+
+    Only the subtrees discovery_hash reads are subscribed to, and only a
+    change of the hash counts, so a service re-applying config the
+    device already has, e.g. when the discovered service is deployed,
+    does not make the CPE analysed again."""
+    PATHS = ['/ncs:devices/device/config/ios:router/bgp',
+             '/ncs:devices/device/config/ios:policy-map',
+             '/ncs:devices/device/config/ios:interface/GigabitEthernet']
+    
+    def init(self):
+        for path in self.PATHS:
+            self.register(path, priority=100)
+    
+    def pre_iterate(self):
+        return set()
+    
+    def iterate(self, kp, op, oldv, newv, state):
+        # kp is /ncs:devices/device{name}/config/... reversed
+        state.add(str(kp[-3][0]))
+        return ncs.ITER_CONTINUE
+    
+    def should_post_iterate(self, state):
+        return len(state) > 0
+    
+    def post_iterate(self, state):
+        self.update(state)
+    
+    def reconcile(self):
+        """Count the changes committed while the package was stopped, by
+        hashing every device known to discovery again."""
+        try:
+            with ncs.maapi.single_read_trans(discovery_user(), 'system',
+                                             db=ncs.OPERATIONAL) as t:
+                devices = ncs.maagic.get_root(t).l3vpn__vpn.discovery.device
+                names = [device.name for device in devices]
+            changed = self.update(names)
+            self.log.info("Device config hashes reconciled, %d of %d "
+                          "devices changed" % (changed, len(names)))
+        except Exception as e:
+            self.log.error("Reconciling device config hashes failed: %s" %
+                           e)
+    
+    def update(self, names):
+        """Hash the devices again and bump the generation of those with a
+        new hash. Returns the number of devices bumped."""
+        user = discovery_user()
+        hashes = {}
+        with ncs.maapi.single_read_trans(user, 'system') as t:
+            devices = ncs.maagic.get_root(t).ncs__devices.device
+            for name in names:
+                try:
+                    hashes[name] = discovery_hash(devices[name])
+                except Exception:
+                    # Deleted, or not an IOS device
+                    hashes[name] = None
+        
+        changed = 0
+        with ncs.maapi.single_write_trans(user, 'system',
+                                          db=ncs.OPERATIONAL) as t:
+            devices = ncs.maagic.get_root(t).l3vpn__vpn.discovery.device
+            for name in names:
+                if name not in devices:
+                    devices.create(name)
+                device = devices[name]
+                config_hash = hashes[name]
+                if config_hash is not None and \
+                   config_hash == device.config_hash:
+                    continue
+                device.config_hash = config_hash
+                device.generation = (device.generation or 0) + 1
+                changed += 1
+            t.apply()
+        return changed
+
+def set_leaf(node, name, value):
+    """Set a leaf, returns True if its value changed."""
+    old = getattr(node, name)
+    if old is not None and value is not None and str(old) == str(value):
+        return False
+    if old is None and value is None:
+        return False
+    setattr(node, name, value)
+    return True
+
 # ---------------
 # ACTIONS EXAMPLE
 # ---------------
@@ -36,193 +227,419 @@ class Action(Action):
         print("Diff set:")
         self.diff_iterate(DiffIterator(), ncs.ITER_WANT_ATTR)
     
-    def get_rd(self,root,service_name,asn):
+    def build_rd_index(self, root):
         junos_cap = "http://xml.juniper.net/xnm/1.1/xnm"
         iosxr_cap = "http://tail-f.com/ned/cisco-ios-xr"
         alu_cap = "http://tail-f.com/ned/alu-sr"
         
+        start = time.time()
+        index = RdIndex()
         pe_names=root.ncs__devices.device_group['PE'].device_name
         
-        for device_name in pe_names:
+        # One pass over the VPN config of every PE, instead of one per CPE
+        for order, device_name in enumerate(pe_names):
             self.log.info("Analysing PE %s" % device_name)
             device = root.ncs__devices.device[device_name]
-            rd = None
             if junos_cap in device.capability:
-                rd = self.get_rd_junos(device, service_name)
+                self.index_rd_junos(device, order, index)
             if iosxr_cap in device.capability:
-                rd = self.get_rd_xr(device, service_name)
+                self.index_rd_xr(device, order, index)
             if alu_cap in device.capability:
-                rd = self.get_rd_alu(device, asn)
-            
-            if rd:
-                self.log.info("get_rd return: %s" % rd)
-                return rd
+                self.index_rd_alu(device, order, index)
         
-        self.log.info("get_rd return: %s" % str(rd))
-        return rd
+        self.log.info("RD index of %d entries built in %.3f s" %
+                      (len(index), time.time() - start))
+        return index
     
-    def get_rd_junos(self, device, service_name):
+    def index_rd_junos(self, device, order, index):
         try: 
-            if service_name in device.config.junos__configuration.\
+            for instance in device.config.junos__configuration.\
                     routing_instances.instance:
-                return device.config.junos__configuration.routing_instances.\
-                    instance[service_name].route_distinguisher.rd_type.split(':')[0] 
-        
-            return None
+                index.add_name(order, instance.name,
+                               instance.route_distinguisher.rd_type)
         except Exception as e:
-            return None
+            self.log.info("No Junos RDs on %s: %s" % (device.name, e))
 
-    def get_rd_xr(self, device, service_name):
+    def index_rd_xr(self, device, order, index):
         try:
             router_bgp = device.config.cisco_ios_xr__router.bgp.bgp_no_instance['100']
             
-            if service_name in router_bgp.vrf:
-                return router_bgp.vrf[service_name].rd.split(':')[0]    
-            
-            return None
+            for vrf in router_bgp.vrf:
+                index.add_name(order, vrf.name, vrf.rd)
         except Exception as e:
-            return None
+            self.log.info("No IOS-XR RDs on %s: %s" % (device.name, e))
          
-    def get_rd_alu(self, device, asn):
+    def index_rd_alu(self, device, order, index):
         try:      
-            if asn in device.config.alu__service.vprn:
-                rd = device.config.alu__service.vprn[asn].route_distinguisher
-                return rd.split(':')[0]
-            
+            for vprn in device.config.alu__service.vprn:
+                index.add_asn(order, vprn.service_id,
+                              vprn.route_distinguisher)
+        except Exception as e:
+            self.log.info("No ALU RDs on %s: %s" % (device.name, e))
+    
+    def analyse_cpe(self, root, cpe, rd_index):
+        """The endpoint discovered on the CPE as a dict, or None if it does
+        not run BGP. Raises an exception if the VPN config is incomplete."""
+        self.log.info("Analysing CPE: " + str(cpe))
+        cpe_device = root.ncs__devices.device[cpe]
+        
+        # I will now check if bgp exist and if
+        # if exits, it belogns to a VPN
+        if not cpe_device.config.ios__router.bgp:
             return None
         
+        endpoint = {'cpe': cpe, 'name': "discovered_%s" % cpe}
+        self.log.info("BGP Found")
+        cpe_bgp = cpe_device.config.ios__router.bgp
+        
+        for asn in cpe_bgp:
+            endpoint['asn'] = asn.as_no
+            
+            for neighbor in asn.neighbor:
+                endpoint['neighbor'] = neighbor.id
+        
+        # Now I will check if policy is been configured
+        if cpe_device.config.ios__policy_map:
+            policy_maps = cpe_device.config.ios__policy_map
+            
+            choices = ['BRONZE', 'SILVER', 'GOLD']
+            
+            for policy_map in policy_maps:
+                if policy_map.name in choices:
+                    endpoint['qos'] = policy_map.name
+                else:
+                    endpoint['service'] = policy_map.name
+                    endpoint['bandwidth'] = policy_map.ios__class['class-default'].shape.average.bit_rate
+        
+        if 'service' not in endpoint:
+            raise ValueError("no VPN policy-map on %s" % cpe)
+        service_name = endpoint['service']
+        
+        for interface in cpe_device.config.ios__interface.GigabitEthernet:
+            if (interface.description == "%s local network" % service_name):
+                endpoint['interface'] = "GigabitEthernet%s" % interface.name
+                int_address= interface.ip.address.primary.address
+                int_mask = interface.ip.address.primary.mask
+                interface = ipaddress.IPv4Interface(unicode('%s/%s' % (int_address,int_mask), "utf-8"))
+                endpoint['network'] = str(interface.network)
+        
+        if 'interface' not in endpoint:
+            raise ValueError("no '%s local network' interface on %s" %
+                             (service_name, cpe))
+        
+        endpoint['rd'] = rd_index.lookup(service_name, endpoint.get('asn'))
+        self.log.info("RD of %s: %s" % (service_name, endpoint['rd']))
+        return endpoint
+    
+    def write_endpoint(self, root, ep):
+        """Returns True if the service or the endpoint was changed."""
+        # Now I can go and create the endpoint
+        service_name = ep['service']
+        changed = False
+        
+        if service_name not in root.l3vpn__vpn.l3vpn:
+            root.l3vpn__vpn.l3vpn.create(service_name)
+            changed = True
+        
+        service = root.l3vpn__vpn.l3vpn[service_name]
+        changed |= set_leaf(service, 'route_distinguisher', ep['rd'])
+        
+        # This should be different
+        
+        if ep['name'] not in service.endpoint:
+            service.endpoint.create(ep['name'])
+            changed = True
+        
+        endpoint = service.endpoint[ep['name']]
+        changed |= set_leaf(endpoint, 'as_number', ep.get('asn'))
+        changed |= set_leaf(endpoint, 'bandwidth', ep.get('bandwidth'))
+        changed |= set_leaf(endpoint, 'ce_device', ep['cpe'])
+        changed |= set_leaf(endpoint, 'ce_interface', ep['interface'])
+        changed |= set_leaf(endpoint, 'ip_network', ep['network'])
+        return changed
+    
+    def read_generations(self, m):
+        """Config change generation and the generation last analysed of
+        every device seen by the DeviceChangeSubscriber."""
+        generations = {}
+        with m.start_read_trans(db=ncs.OPERATIONAL) as t:
+            devices = ncs.maagic.get_root(t).l3vpn__vpn.discovery.device
+            for device in devices:
+                generations[device.name] = (device.generation or 0,
+                                            device.analysed_generation)
+        return generations
+    
+    def unchanged(self, cpe, generations):
+        """True if the CPE config is the same as when it was last
+        analysed."""
+        generation, analysed = generations.get(cpe, (0, None))
+        return analysed is not None and analysed == generation
+    
+    def read_checkpoint(self, m):
+        """The last CPE and the services committed by an interrupted run."""
+        with m.start_read_trans(db=ncs.OPERATIONAL) as t:
+            checkpoint = ncs.maagic.get_root(t).l3vpn__vpn.discovery.checkpoint
+            if not checkpoint.exists():
+                return None, []
+            return checkpoint.last_cpe, list(checkpoint.service)
+    
+    def save_checkpoint(self, m, last_cpe, services, analysed=None):
+        """Persist the progress of the run, None when it is completed,
+        together with the generations of the CPEs analysed."""
+        if analysed is None:
+            analysed = {}
+        with m.start_write_trans(db=ncs.OPERATIONAL) as t:
+            discovery = ncs.maagic.get_root(t).l3vpn__vpn.discovery
+            for cpe, generation in analysed.items():
+                if cpe not in discovery.device:
+                    discovery.device.create(cpe)
+                discovery.device[cpe].analysed_generation = generation
+            checkpoint = discovery.checkpoint
+            if checkpoint.exists():
+                checkpoint.delete()
+            if last_cpe is not None:
+                checkpoint.create()
+                checkpoint.last_cpe = last_cpe
+                for service in services:
+                    checkpoint.service.create(service)
+            t.apply()
+    
+    def discover(self, m, input, output):
+        """Discover and commit the services in chunks of batch-size CPEs,
+        resuming after the last committed chunk of an interrupted run.
+        Unless full is given, CPEs not changed since they were last
+        analysed are skipped. Returns the discovered services."""
+        last_cpe, changed_services = None, []
+        if not input.restart:
+            last_cpe, changed_services = self.read_checkpoint(m)
+        
+        with m.start_read_trans() as t:
+            root = ncs.maagic.get_root(t)
+            
+            # I will first get the list of all CPEs
+            cpe_names = sorted(root.ncs__devices.device_group['C'].device_name)
+            
+            # and the RDs of all VPNs on the PEs
+            rd_index = self.build_rd_index(root)
+        
+        if last_cpe is not None:
+            self.log.info("Resuming discovery after CPE %s" % last_cpe)
+            output.resumed_after = last_cpe
+            cpe_names = [cpe for cpe in cpe_names if cpe > last_cpe]
+        
+        generations = self.read_generations(m)
+        output.skipped = 0
+        if not input.full:
+            todo = [cpe for cpe in cpe_names
+                    if not self.unchanged(cpe, generations)]
+            output.skipped = len(cpe_names) - len(todo)
+            cpe_names = todo
+        output.analysed = 0
+        output.changed = 0
+        
+        seen = set(changed_services)
+        batch_size = input.batch_size
+        for index, first in enumerate(range(0, len(cpe_names), batch_size)):
+            cpes = cpe_names[first:first + batch_size]
+            start = time.time()
+            discovered = 0
+            failed = 0
+            analysed_cpes = {}
+            with m.start_write_trans() as t:
+                root = ncs.maagic.get_root(t)
+                for cpe in cpes:
+                    # A bad CPE only costs its own endpoint
+                    try:
+                        endpoint = self.analyse_cpe(root, cpe, rd_index)
+                        if endpoint is not None and \
+                           self.write_endpoint(root, endpoint):
+                            output.changed += 1
+                    except Exception as e:
+                        self.log.error("Skipping CPE %s: %s" % (cpe, e))
+                        failed += 1
+                        continue
+                    # The generation read before the analysis, a change
+                    # made meanwhile is analysed by the next run
+                    analysed_cpes[cpe] = generations.get(cpe, (0, None))[0]
+                    output.analysed += 1
+                    if endpoint is None:
+                        continue
+                    discovered += 1
+                    if endpoint['service'] not in seen:
+                        seen.add(endpoint['service'])
+                        changed_services.append(endpoint['service'])
+                analysed = time.time()
+                
+                # I now apply changes
+                t.apply()
+            committed = time.time()
+            self.save_checkpoint(m, cpes[-1], changed_services,
+                                 analysed_cpes)
+            
+            chunk = output.chunk.create(index + 1)
+            chunk.first_cpe = cpes[0]
+            chunk.last_cpe = cpes[-1]
+            chunk.cpes = len(cpes)
+            chunk.discovered = discovered
+            chunk.failed = failed
+            chunk.analyse_time = int((analysed - start) * 1000)
+            chunk.commit_time = int((committed - analysed) * 1000)
+            self.log.info("Chunk %d: %d CPEs, %d discovered, %d failed, "
+                          "analysed in %d ms, committed in %d ms" %
+                          (index + 1, len(cpes), discovered, failed,
+                           chunk.analyse_time, chunk.commit_time))
+        
+        self.save_checkpoint(m, None, [])
+        self.log.info("Discovery: %d CPEs skipped, %d analysed, %d changed" %
+                      (output.skipped, output.analysed, output.changed))
+        return changed_services
+    
+    def dry_run(self, m, input, output):
+        """Discover the CPEs in one transaction and report the changes
+        committing it would make, without committing."""
+        generations = {}
+        if not input.full:
+            generations = self.read_generations(m)
+        
+        with m.start_write_trans() as t:
+            root = ncs.maagic.get_root(t)
+            
+            cpe_names=root.ncs__devices.device_group['C'].device_name
+            rd_index = self.build_rd_index(root)
+            
+            for cpe in cpe_names:
+                # The endpoints of unchanged CPEs are already in place
+                if self.unchanged(cpe, generations):
+                    continue
+                try:
+                    endpoint = self.analyse_cpe(root, cpe, rd_index)
+                    if endpoint is not None:
+                        self.write_endpoint(root, endpoint)
+                except Exception as e:
+                    self.log.error("Skipping CPE %s: %s" % (cpe, e))
+            
+            # now lets see what I want to perform the commit dry-run
+            # I use native format to detect changes in device
+            input_dr = root.ncs__services.commit_dry_run.get_input()
+            input_dr.outformat = 'native'
+            dry_output = root.ncs__services.commit_dry_run(input_dr)
+            
+            # The full diff goes to a file under the run directory logs/
+            file = None
+            if input.dry_run_file:
+                output.file = os.path.join('logs', time.strftime(
+                    'l3vpn-dry-run-%Y%m%d-%H%M%S.log'))
+                file = open(output.file, 'w')
+            try:
+                report = DryRunReport(output, input.offset, input.limit,
+                                      file)
+                for device in dry_output.native.device:
+                    report.device(device.name, device.data)
+                m.diff_iterate(t.th, DiffIterator(report.change),
+                               ncs.ITER_WANT_ATTR)
+            finally:
+                if file is not None:
+                    file.close()
+            
+            # Let me check that no device will be modified:
+            output.status = report.devices == 0
+            output.device_diffs = report.devices
+            output.service_changes = report.changes
+            output.message = "%d device diffs, %d service changes" % \
+                (report.devices, report.changes)
+    
+    def reconcile(self, uinfo, services, workers, output):
+        """Re-deploy reconcile the services, each in its own transaction,
+        using up to workers sessions in parallel. Returns True if all
+        services were reconciled."""
+        pending = list(reversed(services))
+        results = {}
+        lock = threading.Lock()
+        
+        threads = []
+        for i in range(min(workers, len(services))):
+            thread = threading.Thread(target=self.reconcile_worker,
+                                      args=(uinfo, pending, results, lock,
+                                            len(services)))
+            thread.start()
+            threads.append(thread)
+        for thread in threads:
+            thread.join()
+        
+        ok = True
+        for name in services:
+            reason, duration = results.get(name, ("Not reconciled", 0))
+            entry = output.reconcile.create(name)
+            entry.success = reason is None
+            entry.duration = duration
+            if reason is not None:
+                entry.reason = reason
+                ok = False
+        return ok
+    
+    def reconcile_worker(self, uinfo, pending, results, lock, total):
+        """Reconcile services from pending until it is empty, results
+        are (failure reason or None, milliseconds) per service."""
+        try:
+            with ncs.maapi.Maapi() as m:
+                with ncs.maapi.Session(m,uinfo.username,uinfo.clearpass):
+                    while True:
+                        with lock:
+                            if not pending:
+                                return
+                            name = pending.pop()
+                        
+                        start = time.time()
+                        reason = None
+                        try:
+                            with m.start_read_trans() as t:
+                                root = ncs.maagic.get_root(t)
+                                service = root.l3vpn__vpn.l3vpn[name]
+                                redeploy_inputs = service.re_deploy.get_input()
+                                redeploy_inputs.reconcile.create()
+                                service.re_deploy(redeploy_inputs)
+                        except Exception as e:
+                            self.log.error("Reconcile of %s failed: %s" %
+                                           (name, e))
+                            reason = str(e)
+                        duration = int((time.time() - start) * 1000)
+                        
+                        with lock:
+                            results[name] = (reason, duration)
+                            done = len(results)
+                        if done % 100 == 0 or done == total:
+                            self.log.info("Reconciled %d of %d services" %
+                                          (done, total))
         except Exception as e:
-            return None
+            # The other workers take over the pending services
+            self.log.error("Reconcile worker failed: %s" % e)
     
     @Action.action    
     def cb_action(self, uinfo, name, kp, input, output):
         output.message = ""
         output.status = False
         
-        # First I create the service
-        
-        changed_services = []
-        
         try:
             with ncs.maapi.Maapi() as m:
                 with ncs.maapi.Session(m,uinfo.username,uinfo.clearpass):
-                    with m.start_write_trans() as t:
-                        root = ncs.maagic.get_root(t)
-                        
-                        # I will first get the list of all CPEs
-                        cpe_names=root.ncs__devices.device_group['C'].device_name
-                        
-                        for cpe in cpe_names:
-                            self.log.info("Analysing CPE: " + str(cpe))
-                            cpe_device = root.ncs__devices.device[cpe]
-                            
-                            # I will now check if bgp exist and if
-                            # if exits, it belogns to a VPN
-                            if(cpe_device.config.ios__router.bgp):
-                                endpoint_name = "discovered_%s" % cpe
-                                self.log.info("BGP Found")
-                                cpe_bgp = cpe_device.config.ios__router.bgp
-                                
-                                for asn in cpe_bgp:
-                                    endpoint_asn=asn.as_no
-                                    
-                                    for neighbor in asn.neighbor:
-                                        cpe_neighbor = neighbor.id
-                                
-                                # Now I will check if policy is been configured
-                                if cpe_device.config.ios__policy_map:
-                                    policy_maps = cpe_device.config.ios__policy_map
-                                    
-                                    choices = ['BRONZE', 'SILVER', 'GOLD']
-                                    
-                                    for policy_map in policy_maps:
-                                        if policy_map.name in choices:
-                                            endpoint_qos = policy_map.name
-                                        else:
-                                            service_name = policy_map.name
-                                            endpoint_bandwidth = policy_map.ios__class['class-default'].shape.average.bit_rate
-                                
-                                for interface in cpe_device.config.ios__interface.GigabitEthernet:
-                                    if (interface.description == "%s local network" % service_name):
-                                        endpoint_interface = "GigabitEthernet%s" % interface.name
-                                        int_address= interface.ip.address.primary.address
-                                        int_mask = interface.ip.address.primary.mask
-                                        interface = ipaddress.IPv4Interface(unicode('%s/%s' % (int_address,int_mask), "utf-8"))
-                                        endpoint_network = str(interface.network)
-                                
-                                service_rd = self.get_rd(root,service_name,endpoint_asn)
-                                
-                                changed_services.append(service_name)
-                                
-                                # Now I can go and create the endpoint
-                                
-                                if service_name not in root.l3vpn__vpn.l3vpn:
-                                    root.l3vpn__vpn.l3vpn.create(service_name)
-                                
-                                service = root.l3vpn__vpn.l3vpn[service_name]
-                                service.route_distinguisher = service_rd
-                                
-                                # This should be different
-                                
-                                if endpoint_name not in service.endpoint:
-                                    service.endpoint.create(endpoint_name)
-                                
-                                endpoint = service.endpoint[endpoint_name]
-                                endpoint.as_number = endpoint_asn
-                                endpoint.bandwidth = endpoint_bandwidth
-                                endpoint.ce_device = cpe
-                                endpoint.ce_interface = endpoint_interface
-                                endpoint.ip_network = endpoint_network
-                        
-
-                        if input.dry_run:
-                            # now lets see what I want to perform the commit dry-run
-                            # I use native format to detect changes in device
-                            input_dr = root.ncs__services.commit_dry_run.get_input()
-                            input_dr.outformat = 'native'
-                            dry_output = root.ncs__services.commit_dry_run(input_dr)
-                            
-                            output.message += "Commit Dry Run Device Changes: \n"
-                            # Let me check that no device will be modified:
-                            
-                            if len(dry_output.native.device) == 0:
-                                output.status = True
-                                output.message += "No Changes \n"
-                            else:
-                                for device in dry_output.native.device:
-                                    output.message += "Device: %s \n" % device.name
-                                    output.message += str(device.data)
-                                    output.message += "\n"
-                            
-                            output.message += "Commit Dry Run Service Changes: \n"
-                            myiter = DiffIterator()
-                            m.diff_iterate(t.th,myiter,ncs.ITER_WANT_ATTR)
-                            for item in myiter.changes:
-                                op = item["op"]
-                                kp = item["kp"]
-                                oldv = item["oldv"]
-                                newv = item["newv"]
-                                output.message += "Operation: %s - KeyPath: %s - Old Value: %s - New Value: %s \n" % (op,kp,oldv,newv)
+                    if input.dry_run:
+                        self.dry_run(m, input, output)
+                        return
                     
-                            return
-                        
-                        # I now apply changes
-                        t.apply()
-                        
-                        # If requested, I will reconciliate only my l3VPN services
-                        # I may need to reconciliate more services
-                        
-                        if input.reconciliate:
-                            self.log.info("Entering reconciliation")
-                            services = root.l3vpn__vpn.l3vpn
-                            
-                            for service_tbd in changed_services:
-                                service = services[service_tbd]
-                                redeploy_inputs = service.re_deploy.get_input()
-                                redeploy_inputs.reconcile.create()
-                                redeploy_outputs = service.re_deploy(redeploy_inputs)
-                                           
-                        output.status = True
+                    # First I create the services
+                    changed_services = self.discover(m, input, output)
+                    
+                    # If requested, I will reconciliate only my l3VPN services
+                    # I may need to reconciliate more services
+                    
+                    if input.reconciliate:
+                        self.log.info("Entering reconciliation")
+                        output.status = self.reconcile(uinfo,
+                                                       changed_services,
+                                                       input.workers, output)
+                        return
+                    
+                    output.status = True
                         
         except Exception as e:
             self.log.error("Exception...")
@@ -240,6 +657,16 @@ class Main(ncs.application.Application):
         # When using actions, this is how we register them:
         #
         self.register_action('l3vpn-service-discovery', Action)
+        
+        # Device config changes, for incremental discovery
+        self.device_sub = DeviceChangeSubscriber(app=self, log=self.log)
+        self.device_sub.start()
+        
+        # and those committed while the package was stopped
+        reconcile = threading.Thread(target=self.device_sub.reconcile,
+                                     name='l3vpn-device-reconcile')
+        reconcile.daemon = True
+        reconcile.start()
 
         # If we registered any callback(s) above, the Application class
         # took care of creating a daemon (related to the service/action point).
@@ -252,4 +679,5 @@ class Main(ncs.application.Application):
         # down, packages were reloaded or some error occurred) this teardown
         # method will be called.
 
+        self.device_sub.stop()
         self.log.info('L3VPN discovery action FINISHED')
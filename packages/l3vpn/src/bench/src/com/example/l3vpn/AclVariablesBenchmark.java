@@ -0,0 +1,45 @@
+package com.example.l3vpn;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ACL template variables from match-traffic entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AclVariablesBenchmark {
+
+    @Param({"1", "20", "200"})
+    public int matches;
+
+    private String[][] entries;
+
+    @Setup
+    public void setup() {
+        SyntheticNetwork network = new SyntheticNetwork(1);
+        entries = new String[matches][];
+        for (int i = 0; i < matches; i++) {
+            entries[i] = new String[] {
+                "match-" + i, "tcp", network.randomPrefixOrAny(),
+                network.randomPrefixOrAny(), "1024", "2048"
+            };
+        }
+    }
+
+    @Benchmark
+    public void aclVariables(Blackhole bh) {
+        for (String[] e : entries) {
+            Map<String, String> vars = QosPolicy.aclVariables(
+                "GLOBAL", e[0], e[1], e[2], e[3], e[4], e[5]);
+            bh.consume(vars);
+        }
+    }
+}
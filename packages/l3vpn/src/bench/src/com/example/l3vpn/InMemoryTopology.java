@@ -0,0 +1,39 @@
+package com.example.l3vpn;
+
+import java.util.List;
+
+/**
+ * In-memory stand-in for the /l3vpn:topology connection list, looked up
+ * the way l3vpnRFS.getConnection did before the TopologyIndex: a linear
+ * scan comparing the device of both endpoints of every connection.
+ */
+public final class InMemoryTopology {
+
+    private final List<TopologyIndex.Link> connections;
+
+    public InMemoryTopology(List<TopologyIndex.Link> connections) {
+        this.connections = connections;
+    }
+
+    public TopologyIndex.Link scan(String deviceName) {
+        for (TopologyIndex.Link conn : connections) {
+            if (deviceName.equals(conn.getMyEndpoint().getDevice()) ||
+                deviceName.equals(conn.getConnectedEndpoint().getDevice())) {
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An index over the same connections.
+     */
+    public TopologyIndex index() {
+        TopologyIndex index = TopologyIndex.newIndex();
+        for (TopologyIndex.Link conn : connections) {
+            index.load(conn.getConnection(), conn.getMyEndpoint(),
+                       conn.getConnectedEndpoint(), conn.getVlan());
+        }
+        return index;
+    }
+}
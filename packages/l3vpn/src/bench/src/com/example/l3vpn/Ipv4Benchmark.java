@@ -0,0 +1,53 @@
+package com.example.l3vpn;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The template variables derived from a link and a local network prefix:
+ * Ipv4Prefix against the string helpers it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Ipv4Benchmark {
+
+    private final String link = "192.168.1.1/30";
+    private final String network = "10.7.7.0/24";
+    private final String match = "10.20.0.0/16";
+
+    @Benchmark
+    public void ipv4Prefix(Blackhole bh) {
+        Ipv4Prefix l = Ipv4Prefix.parse(link);
+        Ipv4Prefix n = Ipv4Prefix.parse(network);
+        Ipv4Prefix m = Ipv4Prefix.parse(match);
+        bh.consume(l.addressString());
+        bh.consume(l.netmaskString());
+        bh.consume(l.lengthString());
+        bh.consume(n.nextHost().addressString());
+        bh.consume(n.addressString());
+        bh.consume(n.netmaskString());
+        bh.consume(m.addressString());
+        bh.consume(m.wildcardMaskString());
+    }
+
+    @Benchmark
+    public void legacyHelpers(Blackhole bh) throws UnknownHostException {
+        bh.consume(LegacyIpHelpers.getIPAddress(link));
+        bh.consume(LegacyIpHelpers.getNetMask(link));
+        bh.consume(LegacyIpHelpers.getIPPrefix(link));
+        bh.consume(LegacyIpHelpers.getIPAddress(
+                       LegacyIpHelpers.getNextIPV4Address(network)));
+        bh.consume(LegacyIpHelpers.getIPAddress(network));
+        bh.consume(LegacyIpHelpers.getNetMask(network));
+        bh.consume(LegacyIpHelpers.getIPAddress(match));
+        bh.consume(LegacyIpHelpers.prefixToWildcardMask(
+                       LegacyIpHelpers.getIPPrefix(match)));
+    }
+}
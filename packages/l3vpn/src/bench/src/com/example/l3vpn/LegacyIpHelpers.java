@@ -0,0 +1,77 @@
+package com.example.l3vpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * The string based IPv4 helpers l3vpnRFS used before Ipv4Prefix, kept
+ * as is, bugs included, as the baseline for Ipv4Benchmark.
+ */
+final class LegacyIpHelpers {
+
+    private LegacyIpHelpers() {
+    }
+
+    static String getIPAddress(String prefix) {
+        String[] parts = prefix.split("/");
+        return parts[0];
+    }
+
+    static String getIPPrefix(String prefix) {
+        String[] parts = prefix.split("/");
+        return parts[1];
+    }
+
+    static String getNetMask(String addr) throws UnknownHostException {
+        String[] parts = addr.split("/");
+        int prefix;
+        if (parts.length < 2) {
+            prefix = 0;
+        } else {
+            prefix = Integer.parseInt(parts[1]);
+        }
+        int mask = 0xffffffff << (32 - prefix);
+
+        int value = mask;
+        byte[] bytes = new byte[]{
+                (byte)(value >>> 24), (byte)(value >> 16 & 0xff),
+                (byte)(value >> 8 & 0xff), (byte)(value & 0xff) };
+
+        InetAddress netAddr = InetAddress.getByAddress(bytes);
+        return netAddr.getHostAddress();
+    }
+
+    static String getNextIPV4Address(String ip) {
+        String ipAddr = ip.split("/")[0];
+        String mask = ip.split("/")[1];
+
+        String[] nums = ipAddr.split("\\.");
+        int i = (Integer.parseInt(nums[0]) << 24 |
+                        Integer.parseInt(nums[2]) << 8
+              |  Integer.parseInt(nums[1]) << 16 |
+                      Integer.parseInt(nums[3])) + 1;
+
+        // If you wish to skip over .255 addresses.
+        if ((byte) i == -1) i++;
+
+        return String.format("%d.%d.%d.%d",
+                             i >>> 24 & 0xFF, i >> 16 & 0xFF,
+                             i >>   8 & 0xFF, i >>  0 & 0xFF)
+                             +"/"+mask;
+    }
+
+    static String prefixToWildcardMask(String pre)
+            throws UnknownHostException{
+        int prefix = Integer.parseInt(pre);
+        int mask = 0xffffffff << (32 - prefix);
+        int value = mask;
+        byte[] bytes = new byte[]{
+            (byte)(~(value >>> 24) & 0xFF),
+            (byte)( ~(value >> 16 & 0xff) & 0xFF),
+            (byte)( ~(value >> 8 & 0xff) & 0xFF),
+            (byte)( ~(value & 0xff) & 0xFF ) };
+
+        InetAddress netAddr = InetAddress.getByAddress(bytes);
+        return netAddr.getHostAddress();
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.l3vpn;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Plan and apply of a whole VPN: per-endpoint template variables, QoS
+ * class expansion, ACL variables and the template applications.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QosExpansionBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int classes;
+
+    @Param({"0", "20", "200"})
+    public int matches;
+
+    @Param({"1", "500", "5000"})
+    public int endpoints;
+
+    private ServiceSnapshot snapshot;
+
+    @Setup
+    public void setup() {
+        SyntheticNetwork network = new SyntheticNetwork(1);
+        List<TopologyIndex.Link> links = network.connections(endpoints);
+        QosPolicy policy = network.qosPolicy("GOLD", classes, matches);
+        snapshot = network.service("vpn", links, endpoints, policy, 5);
+    }
+
+    @Benchmark
+    public List<TemplateOp> plan() {
+        return MappingPlanner.plan(snapshot);
+    }
+
+    @Benchmark
+    public int planDistinctApply() {
+        TemplateSink sink = new TemplateSink();
+        for (List<TemplateOp> ops : MappingPlanner.distinct(
+                 MappingPlanner.plan(snapshot, snapshot.getEndpoints()))) {
+            for (TemplateOp op : ops) {
+                sink.apply(op);
+            }
+        }
+        return sink.getApplies();
+    }
+
+    @Benchmark
+    public int planApplyAll() {
+        TemplateSink sink = new TemplateSink();
+        for (TemplateOp op : MappingPlanner.plan(snapshot)) {
+            sink.apply(op);
+        }
+        return sink.getApplies();
+    }
+}
@@ -0,0 +1,465 @@
+package com.example.l3vpn;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Synthetic network at scale: topology connections and roles, QoS
+ * policies with their classes and match-traffic entries, and l3vpn
+ * service instances, built with SyntheticNetwork. The same seed and
+ * sizes always give the same network.
+ *
+ * The network is passed to a Sink piece by piece, never held as a
+ * whole: the role devices and the connections of a service are made
+ * from the connection index as they are passed. XmlSink streams it as
+ * load merge XML, Fixtures keeps it in memory for benchmarks and tests.
+ * Run as a program it writes the XML:
+ *
+ *   ScaleGenerator [-endpoints N] [-services N] [-policies N]
+ *                  [-classes N] [-matches N] [-custom-matches N]
+ *                  [-seed N] [-o file]
+ *
+ * The CE and PE devices, ce0.. and pe0.., are not generated.
+ */
+public final class ScaleGenerator {
+
+    private static final String CONFIG_NS =
+        "http://tail-f.com/ns/config/1.0";
+    private static final String L3VPN_NS = "http://com/example/l3vpn";
+
+    /**
+     * Receives the network in the order: roles, connections, policies,
+     * services.
+     */
+    public interface Sink {
+        /**
+         * @param devices - the devices, made as they are iterated
+         */
+        void role(String role, Iterable<String> devices) throws IOException;
+
+        void connection(TopologyIndex.Link link) throws IOException;
+
+        void policy(QosPolicy policy) throws IOException;
+
+        void service(ServiceSnapshot service) throws IOException;
+
+        void end() throws IOException;
+    }
+
+    private long seed = 1;
+    private int endpoints = 1000;
+    private int services = 10;
+    private int policies = 3;
+    private int classes = 5;
+    private int matches = 10;
+    private int customMatches = 2;
+
+    public ScaleGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Endpoints, one connection and CE per endpoint.
+     */
+    public ScaleGenerator endpoints(int endpoints) {
+        this.endpoints = endpoints;
+        return this;
+    }
+
+    /**
+     * Services, the endpoints are spread evenly over them.
+     */
+    public ScaleGenerator services(int services) {
+        this.services = services;
+        return this;
+    }
+
+    /**
+     * QoS policies, used by the services in turn. No QoS if 0.
+     */
+    public ScaleGenerator policies(int policies) {
+        this.policies = policies;
+        return this;
+    }
+
+    /**
+     * Classes per policy.
+     */
+    public ScaleGenerator classes(int classes) {
+        this.classes = classes;
+        return this;
+    }
+
+    /**
+     * Match-traffic entries per policy.
+     */
+    public ScaleGenerator matches(int matches) {
+        this.matches = matches;
+        return this;
+    }
+
+    /**
+     * Custom QoS matches per service.
+     */
+    public ScaleGenerator customMatches(int customMatches) {
+        this.customMatches = customMatches;
+        return this;
+    }
+
+    /**
+     * Pass the network to the sink.
+     */
+    public void generate(Sink sink) throws IOException {
+        SyntheticNetwork network = new SyntheticNetwork(seed);
+
+        sink.role("ce", devices(1, false));
+        sink.role("pe", devices(SyntheticNetwork.FAN_OUT, true));
+
+        for (int i = 0; i < endpoints; i++) {
+            sink.connection(SyntheticNetwork.connection(i));
+        }
+
+        List<QosPolicy> qosPolicies = new ArrayList<QosPolicy>();
+        for (int p = 0; p < policies; p++) {
+            QosPolicy policy = network.qosPolicy(
+                "POLICY-" + p, "P" + p + "-CLASS-", classes, matches);
+            qosPolicies.add(policy);
+            sink.policy(policy);
+        }
+
+        int first = 0;
+        for (int s = 0; s < services; s++) {
+            int n = endpoints / services + (s < endpoints % services ? 1 : 0);
+            QosPolicy policy = qosPolicies.isEmpty() ?
+                null : qosPolicies.get(s % qosPolicies.size());
+            sink.service(network.service(
+                "vpn" + s, String.valueOf(10000 + s), first, n, policy,
+                customMatches));
+            first += n;
+        }
+        sink.end();
+    }
+
+    /**
+     * The CE, or PE, of every step:th connection.
+     */
+    private Iterable<String> devices(final int step, final boolean pe) {
+        return new Iterable<String>() {
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private int i = 0;
+
+                    public boolean hasNext() {
+                        return i < endpoints;
+                    }
+
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        TopologyIndex.Link link =
+                            SyntheticNetwork.connection(i);
+                        i += step;
+                        return pe ? link.getConnectedEndpoint().getDevice() :
+                            link.getMyEndpoint().getDevice();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The network in memory.
+     */
+    public static final class Fixtures implements Sink {
+        private final List<TopologyIndex.Link> connections =
+            new ArrayList<TopologyIndex.Link>();
+        private final List<QosPolicy> policies = new ArrayList<QosPolicy>();
+        private final List<ServiceSnapshot> services =
+            new ArrayList<ServiceSnapshot>();
+
+        public void role(String role, Iterable<String> devices) {
+        }
+
+        public void connection(TopologyIndex.Link link) {
+            connections.add(link);
+        }
+
+        public void policy(QosPolicy policy) {
+            policies.add(policy);
+        }
+
+        public void service(ServiceSnapshot service) {
+            services.add(service);
+        }
+
+        public void end() {
+        }
+
+        public List<TopologyIndex.Link> getConnections() {
+            return connections;
+        }
+
+        public List<QosPolicy> getPolicies() {
+            return policies;
+        }
+
+        public List<ServiceSnapshot> getServices() {
+            return services;
+        }
+
+        /**
+         * A topology index over the connections.
+         */
+        public TopologyIndex index() {
+            return new InMemoryTopology(connections).index();
+        }
+    }
+
+    /**
+     * The network as load merge XML, written as it is passed.
+     */
+    public static final class XmlSink implements Sink {
+        private final XMLStreamWriter out;
+        private String container = null;
+
+        public XmlSink(OutputStream os) throws IOException {
+            try {
+                out = XMLOutputFactory.newInstance().
+                    createXMLStreamWriter(os, "UTF-8");
+                out.writeStartDocument("UTF-8", "1.0");
+                out.writeCharacters("\n");
+                out.writeStartElement("config");
+                out.writeDefaultNamespace(CONFIG_NS);
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public void role(String role, Iterable<String> devices)
+            throws IOException {
+            try {
+                enter("topology");
+                out.writeStartElement("role");
+                leaf("role", role);
+                for (String device : devices) {
+                    leaf("device", device);
+                }
+                out.writeEndElement();
+                out.writeCharacters("\n");
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public void connection(TopologyIndex.Link link) throws IOException {
+            try {
+                enter("topology");
+                out.writeStartElement("connection");
+                leaf("name", link.getConnection());
+                endpoint("endpoint-1", link.getMyEndpoint());
+                endpoint("endpoint-2", link.getConnectedEndpoint());
+                leaf("link-vlan", link.getVlan());
+                out.writeEndElement();
+                out.writeCharacters("\n");
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public void policy(QosPolicy policy) throws IOException {
+            try {
+                enter("qos");
+                out.writeStartElement("qos-policy");
+                leaf("name", policy.getName());
+                for (QosPolicy.QosClass c : policy.getClasses()) {
+                    out.writeStartElement("class");
+                    leaf("qos-class", c.getName());
+                    leaf("bandwidth-percentage", c.getBandwidth());
+                    if (c.isPrio()) {
+                        out.writeEmptyElement("priority");
+                    }
+                    out.writeEndElement();
+                }
+                out.writeEndElement();
+                out.writeCharacters("\n");
+
+                // The qos-classes of a policy are its own
+                for (QosPolicy.QosClass c : policy.getClasses()) {
+                    out.writeStartElement("qos-class");
+                    leaf("name", c.getName());
+                    leaf("dscp-value", c.getDscp());
+                    for (Map<String, String> acl : c.getAclVariables()) {
+                        out.writeStartElement("match-traffic");
+                        leaf("name", acl.get("ACL_NAME").
+                             substring("GLOBAL-".length()));
+                        match(acl);
+                        out.writeEndElement();
+                    }
+                    out.writeEndElement();
+                    out.writeCharacters("\n");
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public void service(ServiceSnapshot service) throws IOException {
+            try {
+                enter("vpn");
+                out.writeStartElement("l3vpn");
+                leaf("name", service.getName());
+                leaf("route-distinguisher",
+                     service.getRouteDistinguisher());
+                for (ServiceSnapshot.Endpoint e : service.getEndpoints()) {
+                    out.writeStartElement("endpoint");
+                    leaf("id", e.getId());
+                    leaf("ce-device", e.getCeDevice());
+                    leaf("ce-interface", e.getCeInterface());
+                    leaf("ip-network", e.getIpNetwork().toString());
+                    leaf("bandwidth", e.getBandwidth());
+                    leaf("as-number", e.getAsNumber());
+                    out.writeEndElement();
+                }
+                QosPolicy policy = service.getQosPolicy();
+                if (policy != null) {
+                    out.writeStartElement("qos");
+                    leaf("qos-policy", policy.getName());
+                    for (ServiceSnapshot.CustomMatch m :
+                             service.getCustomMatches()) {
+                        out.writeStartElement("custom-qos-match");
+                        leaf("name", m.getName());
+                        leaf("qos-class", m.getQosClass());
+                        match(m.getAclVariables(service.getName()));
+                        out.writeEndElement();
+                    }
+                    out.writeEndElement();
+                }
+                out.writeEndElement();
+                out.writeCharacters("\n");
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public void end() throws IOException {
+            try {
+                enter(null);
+                out.writeEndElement();
+                out.writeCharacters("\n");
+                out.writeEndDocument();
+                out.flush();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        // Close the current top container and open the next one
+        private void enter(String next) throws XMLStreamException {
+            if (next != null && next.equals(container)) {
+                return;
+            }
+            if (container != null) {
+                out.writeEndElement();
+            }
+            if (next != null) {
+                out.writeCharacters("\n");
+                out.writeStartElement(next);
+                out.writeDefaultNamespace(L3VPN_NS);
+            }
+            container = next;
+        }
+
+        private void endpoint(String name, TopologyIndex.LinkEndpoint e)
+            throws XMLStreamException {
+            out.writeStartElement(name);
+            leaf("device", e.getDevice());
+            leaf("interface", e.getInterface());
+            leaf("ip-address", e.getIpAddress());
+            out.writeEndElement();
+        }
+
+        // The qos-match-grouping leaves back from the ACL variables
+        private void match(Map<String, String> acl)
+            throws XMLStreamException {
+            leaf("source-ip", acl.get("SOURCE_IP"));
+            String dest = acl.get("DEST_IP_ADR");
+            if (!"any".equals(dest)) {
+                int wildcard = Ipv4Prefix.parse(
+                    acl.get("DEST_WMASK") + "/32").getAddress();
+                dest += "/" + (32 - Integer.bitCount(wildcard));
+            }
+            leaf("destination-ip", dest);
+            leaf("port-start", acl.get("PORT_START"));
+            leaf("port-end", acl.get("PORT_END"));
+            leaf("protocol", acl.get("PROTOCOL"));
+        }
+
+        private void leaf(String name, String value)
+            throws XMLStreamException {
+            if (value == null || value.length() == 0) {
+                return;
+            }
+            out.writeStartElement(name);
+            out.writeCharacters(value);
+            out.writeEndElement();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ScaleGenerator generator = new ScaleGenerator();
+        String file = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+            if ("-o".equals(option)) {
+                file = value;
+            } else if ("-seed".equals(option)) {
+                generator.seed(Long.parseLong(value));
+            } else if ("-endpoints".equals(option)) {
+                generator.endpoints(Integer.parseInt(value));
+            } else if ("-services".equals(option)) {
+                generator.services(Integer.parseInt(value));
+            } else if ("-policies".equals(option)) {
+                generator.policies(Integer.parseInt(value));
+            } else if ("-classes".equals(option)) {
+                generator.classes(Integer.parseInt(value));
+            } else if ("-matches".equals(option)) {
+                generator.matches(Integer.parseInt(value));
+            } else if ("-custom-matches".equals(option)) {
+                generator.customMatches(Integer.parseInt(value));
+            } else {
+                throw new IllegalArgumentException("Unknown option " +
+                                                   option);
+            }
+        }
+
+        OutputStream os = file == null ?
+            System.out : new FileOutputStream(file);
+        os = new BufferedOutputStream(os, 64 * 1024);
+        try {
+            generator.generate(new XmlSink(os));
+        } finally {
+            os.flush();
+            if (file != null) {
+                os.close();
+            }
+        }
+    }
+}
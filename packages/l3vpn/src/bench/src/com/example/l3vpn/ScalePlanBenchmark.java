@@ -0,0 +1,44 @@
+package com.example.l3vpn;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Planning every service of a generated network, the same network
+ * "ant generate" writes as XML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScalePlanBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int endpoints;
+
+    @Param({"1", "100"})
+    public int services;
+
+    private List<ServiceSnapshot> snapshots;
+
+    @Setup
+    public void setup() throws Exception {
+        ScaleGenerator.Fixtures fixtures = new ScaleGenerator.Fixtures();
+        new ScaleGenerator().endpoints(endpoints).services(services).
+            generate(fixtures);
+        snapshots = fixtures.getServices();
+    }
+
+    @Benchmark
+    public int planAll() {
+        int ops = 0;
+        for (ServiceSnapshot snapshot : snapshots) {
+            ops += MappingPlanner.plan(snapshot).size();
+        }
+        return ops;
+    }
+}
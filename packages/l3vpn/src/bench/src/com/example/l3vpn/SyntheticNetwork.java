@@ -0,0 +1,181 @@
+package com.example.l3vpn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic topologies, QoS policies and service instances
+ * for the benchmarks. The same seed always gives the same network.
+ */
+public final class SyntheticNetwork {
+
+    private static final String[] DSCP = {
+        "ef", "af31", "af21", "af11", "cs1", "default"
+    };
+    private static final String[] PROTOCOLS = { "tcp", "udp", "icmp" };
+
+    // CEs per PE
+    static final int FAN_OUT = 250;
+
+    private final Random random;
+
+    public SyntheticNetwork(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Connections c0..cN-1, connection i between ce<i> and pe<i/250>
+     * with a /30 link network. Each link is seen from the CE.
+     */
+    public List<TopologyIndex.Link> connections(int n) {
+        return connections(0, n);
+    }
+
+    /**
+     * Connections c<first>..c<first+n-1>.
+     */
+    public List<TopologyIndex.Link> connections(int first, int n) {
+        List<TopologyIndex.Link> links = new ArrayList<TopologyIndex.Link>(n);
+        for (int i = first; i < first + n; i++) {
+            links.add(connection(i));
+        }
+        return links;
+    }
+
+    /**
+     * Connection i, the same for every seed.
+     */
+    public static TopologyIndex.Link connection(int i) {
+        int net = 0x0a000000 + i * 4;
+        TopologyIndex.LinkEndpoint ce = new TopologyIndex.LinkEndpoint(
+            "ce" + i, "GigabitEthernet0/" + (i % 24),
+            Ipv4Prefix.format(net + 1) + "/30");
+        TopologyIndex.LinkEndpoint pe = new TopologyIndex.LinkEndpoint(
+            "pe" + (i / FAN_OUT), "GigabitEthernet0/0/0/" + (i % FAN_OUT),
+            Ipv4Prefix.format(net + 2) + "/30");
+        return new TopologyIndex.Link("c" + i, "endpoint-1", ce, pe,
+                                      String.valueOf(100 + i % 4000));
+    }
+
+    /**
+     * A policy with the given number of classes and match-traffic entries
+     * spread evenly over the classes.
+     */
+    public QosPolicy qosPolicy(String name, int classes, int matches) {
+        return qosPolicy(name, "CLASS-", classes, matches);
+    }
+
+    /**
+     * As qosPolicy(name, classes, matches) with the classes named
+     * classPrefix0..classPrefixN-1.
+     */
+    public QosPolicy qosPolicy(String name, String classPrefix, int classes,
+                               int matches) {
+        List<List<Map<String, String>>> acls =
+            new ArrayList<List<Map<String, String>>>();
+        List<List<String>> entries = new ArrayList<List<String>>();
+        for (int c = 0; c < classes; c++) {
+            acls.add(new ArrayList<Map<String, String>>());
+            entries.add(new ArrayList<String>());
+        }
+        for (int m = 0; m < matches && classes > 0; m++) {
+            String match = "match-" + m;
+            acls.get(m % classes).add(QosPolicy.aclVariables(
+                "GLOBAL", match,
+                PROTOCOLS[random.nextInt(PROTOCOLS.length)],
+                randomPrefixOrAny(), randomPrefixOrAny(),
+                String.valueOf(1024 + random.nextInt(1000)),
+                String.valueOf(3024 + random.nextInt(1000))));
+            entries.get(m % classes).add("GLOBAL-" + match);
+        }
+        List<QosPolicy.QosClass> qosClasses =
+            new ArrayList<QosPolicy.QosClass>();
+        for (int c = 0; c < classes; c++) {
+            qosClasses.add(new QosPolicy.QosClass(
+                classPrefix + c, DSCP[c % DSCP.length],
+                String.valueOf(1 + random.nextInt(50)), c, c == 0,
+                entries.get(c), acls.get(c)));
+        }
+        return new QosPolicy(name, qosClasses);
+    }
+
+    /**
+     * A VPN with an endpoint on each of the first endpoints connections.
+     */
+    public ServiceSnapshot service(String name,
+                                   List<TopologyIndex.Link> connections,
+                                   int endpoints, QosPolicy policy,
+                                   int customMatches) {
+        return service(name, "12345", connections.subList(0, endpoints), 0,
+                       policy, customMatches);
+    }
+
+    /**
+     * A VPN with an endpoint on each of the links, the endpoints
+     * numbered from first.
+     */
+    public ServiceSnapshot service(String name, String routeDistinguisher,
+                                   List<TopologyIndex.Link> links,
+                                   int first, QosPolicy policy,
+                                   int customMatches) {
+        List<ServiceSnapshot.Endpoint> eps =
+            new ArrayList<ServiceSnapshot.Endpoint>(links.size());
+        for (int n = 0; n < links.size(); n++) {
+            eps.add(endpoint(first + n, links.get(n)));
+        }
+        return service(name, routeDistinguisher, eps, policy, customMatches);
+    }
+
+    /**
+     * A VPN with an endpoint on each of the connections
+     * c<first>..c<first+n-1>, the same as with the list of them, but
+     * each connection is made as its endpoint is added.
+     */
+    public ServiceSnapshot service(String name, String routeDistinguisher,
+                                   int first, int n, QosPolicy policy,
+                                   int customMatches) {
+        List<ServiceSnapshot.Endpoint> eps =
+            new ArrayList<ServiceSnapshot.Endpoint>(n);
+        for (int i = first; i < first + n; i++) {
+            eps.add(endpoint(i, connection(i)));
+        }
+        return service(name, routeDistinguisher, eps, policy, customMatches);
+    }
+
+    private ServiceSnapshot.Endpoint endpoint(int i, TopologyIndex.Link link) {
+        return new ServiceSnapshot.Endpoint(
+            "endpoint-" + i, link.getMyEndpoint().getDevice(),
+            "GigabitEthernet0/" + (24 + i % 24),
+            new Ipv4Prefix(0xac100000 + (i << 8), 24),
+            String.valueOf(1000000 + random.nextInt(9000000)),
+            String.valueOf(64512 + i % 1000), link);
+    }
+
+    private ServiceSnapshot service(String name, String routeDistinguisher,
+                                    List<ServiceSnapshot.Endpoint> eps,
+                                    QosPolicy policy, int customMatches) {
+        List<ServiceSnapshot.CustomMatch> matches =
+            new ArrayList<ServiceSnapshot.CustomMatch>();
+        List<QosPolicy.QosClass> classes = policy == null ?
+            new ArrayList<QosPolicy.QosClass>() : policy.getClasses();
+        for (int m = 0; m < customMatches && !classes.isEmpty(); m++) {
+            matches.add(new ServiceSnapshot.CustomMatch(
+                "custom-" + m, classes.get(m % classes.size()).getName(),
+                PROTOCOLS[random.nextInt(PROTOCOLS.length)],
+                randomPrefixOrAny(), randomPrefixOrAny(), "80", "443"));
+        }
+        return new ServiceSnapshot(name, routeDistinguisher, policy, eps,
+                                   matches);
+    }
+
+    String randomPrefixOrAny() {
+        if (random.nextInt(4) == 0) {
+            return "any";
+        }
+        int len = 8 + random.nextInt(25);
+        int addr = random.nextInt() & 0xffffffff << (32 - len);
+        return Ipv4Prefix.format(addr) + "/" + len;
+    }
+}
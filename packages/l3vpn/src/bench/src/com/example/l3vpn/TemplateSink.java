@@ -0,0 +1,28 @@
+package com.example.l3vpn;
+
+import com.tailf.ncs.template.TemplateVariables;
+
+/**
+ * In-memory stand-in for com.tailf.ncs.template.Template. Builds the
+ * TemplateVariables like the apply phase of create() does and counts
+ * the applications per template.
+ */
+public final class TemplateSink {
+
+    private int applies = 0;
+    private int variables = 0;
+
+    public void apply(TemplateOp op) {
+        TemplateVariables vars = op.toTemplateVariables();
+        applies++;
+        variables += vars.size();
+    }
+
+    public int getApplies() {
+        return applies;
+    }
+
+    public int getVariables() {
+        return variables;
+    }
+}
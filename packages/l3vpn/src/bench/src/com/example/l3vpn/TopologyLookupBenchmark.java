@@ -0,0 +1,55 @@
+package com.example.l3vpn;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * CE to PE lookup: the TopologyIndex against the linear scan of the
+ * connection list it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopologyLookupBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int connections;
+
+    private TopologyIndex index;
+    private InMemoryTopology topology;
+    private String[] devices;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        SyntheticNetwork network = new SyntheticNetwork(1);
+        List<TopologyIndex.Link> links = network.connections(connections);
+        topology = new InMemoryTopology(links);
+        index = topology.index();
+        java.util.Random random = new java.util.Random(2);
+        devices = new String[1024];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = "ce" + random.nextInt(connections);
+        }
+    }
+
+    private String nextDevice() {
+        next = (next + 1) & (devices.length - 1);
+        return devices[next];
+    }
+
+    @Benchmark
+    public TopologyIndex.Link indexLookup() {
+        return index.get(nextDevice());
+    }
+
+    @Benchmark
+    public TopologyIndex.Link linearScan() {
+        return topology.scan(nextDevice());
+    }
+}
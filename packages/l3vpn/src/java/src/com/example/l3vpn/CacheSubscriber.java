@@ -0,0 +1,256 @@
+package com.example.l3vpn;
+
+import com.example.l3vpn.DeviceCapabilitySubscriber.DeviceCollector;
+import com.example.l3vpn.namespaces.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.cdb.*;
+import com.tailf.conf.*;
+import com.tailf.ncs.ApplicationComponent;
+import com.tailf.ncs.ns.Ncs;
+import com.tailf.ncs.annotations.Resource;
+import com.tailf.ncs.annotations.ResourceType;
+import com.tailf.ncs.annotations.Scope;
+
+/**
+ * CDB subscriber keeping the caches used by the service mapping in line
+ * with the running configuration.
+ *
+ * It also keeps the ServiceIndex of the committed services and
+ * re-deploys the service instances impacted by a change of the topology
+ * connections or QoS policies, as found in the index.
+ */
+public class CacheSubscriber implements ApplicationComponent {
+
+    private static final Logger LOGGER =
+        Logger.getLogger(CacheSubscriber.class);
+
+    private static final String REDEPLOY_USER = "/l3vpn:vpn/redeploy-user";
+
+    @Resource(type=ResourceType.CDB, scope=Scope.INSTANCE,
+              qualifier="l3vpn-cache-subscriber")
+    private Cdb subCdb;
+
+    @Resource(type=ResourceType.CDB, scope=Scope.INSTANCE,
+              qualifier="l3vpn-cache-reader")
+    private Cdb readCdb;
+
+    private CdbSubscription sub;
+    private int topologyPoint;
+    private int devicesPoint;
+    private int qosPoint;
+    private int servicePoint;
+    private ServiceRedeployer redeployer;
+    private volatile boolean running = false;
+
+    public void init() throws Exception {
+        sub = subCdb.newSubscription();
+        topologyPoint = sub.subscribe(1, new l3vpn(), "/topology");
+        // Devices created or deleted, their capabilities are followed
+        // by the DeviceCapabilitySubscriber
+        devicesPoint = sub.subscribe(1, new Ncs(), "/devices/device/name");
+        qosPoint = sub.subscribe(1, new l3vpn(), "/qos");
+        servicePoint = sub.subscribe(1, new l3vpn(), "/vpn/l3vpn");
+        sub.subscribeDone();
+        redeployer = new ServiceRedeployer();
+        running = true;
+    }
+
+    public void run() {
+        ServiceIndex services = ServiceIndex.getInstance();
+        try {
+            CdbSession session = readCdb.startSession(CdbDBType.CDB_RUNNING);
+            try {
+                TopologyIndex.getInstance().build(session);
+                services.build(session);
+            } finally {
+                session.endSession();
+            }
+            while (running) {
+                int[] points = sub.read();
+                Set<String> impacted = new TreeSet<String>();
+                // The YANG default
+                String user = "admin";
+                session = readCdb.startSession(CdbDBType.CDB_RUNNING);
+                try {
+                    for (int point : points) {
+                        if (point == topologyPoint) {
+                            KeyCollector changed = new KeyCollector();
+                            sub.diffIterate(point, changed);
+                            if (changed.isAll()) {
+                                TopologyIndex.getInstance().build(session);
+                                impacted.addAll(services.all());
+                            } else {
+                                Set<String> conns =
+                                    changed.keys("connection");
+                                TopologyIndex.getInstance().refresh(
+                                    session, conns);
+                                // Services on the connections before and
+                                // after the change
+                                impacted.addAll(services.impacted(
+                                    conns, devices(session, conns),
+                                    null, null));
+                            }
+                        } else if (point == devicesPoint) {
+                            DeviceCollector changed = new DeviceCollector();
+                            sub.diffIterate(point, changed);
+                            DeviceSyncCache.getInstance().invalidate(
+                                changed.devices());
+                        } else if (point == qosPoint) {
+                            KeyCollector changed = new KeyCollector();
+                            sub.diffIterate(point, changed);
+                            QosPolicyCache cache =
+                                QosPolicyCache.getInstance();
+                            if (changed.isAll()) {
+                                cache.invalidateAll();
+                                impacted.addAll(services.all());
+                            } else {
+                                cache.invalidatePolicies(
+                                    changed.keys("qos-policy"));
+                                cache.invalidateClasses(
+                                    changed.keys("qos-class"));
+                                impacted.addAll(services.impacted(
+                                    null, null, changed.keys("qos-policy"),
+                                    changed.keys("qos-class")));
+                            }
+                        } else if (point == servicePoint) {
+                            KeyCollector changed = new KeyCollector();
+                            sub.diffIterate(point, changed);
+                            if (changed.isAll()) {
+                                services.build(session);
+                            } else {
+                                forget(services.refresh(
+                                    session, changed.keys("l3vpn")));
+                            }
+                        }
+                    }
+                    // What the impacted services refer to may have
+                    // changed, e.g. the classes of their policy
+                    Set<String> deleted = services.refresh(session, impacted);
+                    forget(deleted);
+                    impacted.removeAll(deleted);
+                    if (session.exists(REDEPLOY_USER)) {
+                        user = session.getElem(REDEPLOY_USER).toString();
+                    }
+                } finally {
+                    session.endSession();
+                }
+                sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
+                // Re-deploy in new transactions, after this one is done
+                if (!impacted.isEmpty()) {
+                    LOGGER.info("l3vpn re-deploying " + impacted.size() +
+                                " impacted services");
+                    redeployer.submit(impacted, user);
+                }
+            }
+        } catch (Exception e) {
+            if (running) {
+                LOGGER.error("l3vpn cache subscriber stopped, caching " +
+                             "disabled until the package is reloaded", e);
+            }
+            // Nothing can be trusted without the subscription, the
+            // mapping reads the topology, policies and devices from
+            // every transaction until the package is reloaded
+            TopologyIndex.getInstance().disable();
+            DeviceSyncCache.getInstance().disable();
+            QosPolicyCache.getInstance().disable();
+            services.disable();
+        }
+    }
+
+    /**
+     * Drop the stats of deleted services.
+     */
+    private static void forget(Set<String> deleted) {
+        for (String name : deleted) {
+            MappingStats.getInstance().removeService(name);
+        }
+    }
+
+    /**
+     * The devices of the connections as they are now.
+     */
+    private static Set<String> devices(CdbSession session,
+                                       Set<String> connections)
+        throws ConfException, java.io.IOException {
+        Set<String> devices = new HashSet<String>();
+        for (String name : connections) {
+            String path = "/l3vpn:topology/connection{" + name + "}";
+            for (String side : new String[] {"endpoint-1", "endpoint-2"}) {
+                if (session.exists(path + "/" + side + "/device")) {
+                    devices.add(session.getElem(
+                        path + "/" + side + "/device").toString());
+                }
+            }
+        }
+        return devices;
+    }
+
+    public void finish() throws Exception {
+        running = false;
+        // The package is being stopped
+        MappingPlanner.shutdown();
+        if (redeployer != null) {
+            redeployer.shutdown();
+        }
+        try {
+            subCdb.close();
+        } catch (Exception ignore) {
+        }
+        try {
+            readCdb.close();
+        } catch (Exception ignore) {
+        }
+    }
+
+    /**
+     * Collects the keys of the list entries changed directly below the
+     * subscribed container, e.g. {c7} for /l3vpn:topology/connection{c7}.
+     */
+    static class KeyCollector implements CdbDiffIterate {
+        private final Map<String, Set<String>> keys =
+            new HashMap<String, Set<String>>();
+        private boolean all = false;
+
+        public DiffIterateResultFlag iterate(ConfObject[] kp,
+                                             DiffIterateOperFlag op,
+                                             ConfObject oldValue,
+                                             ConfObject newValue,
+                                             Object initstate) {
+            // The keypath is reversed, the subscribed container is last
+            int n = kp.length;
+            if (n < 2) {
+                all = true;
+                return DiffIterateResultFlag.ITER_STOP;
+            }
+            if (n >= 3 && kp[n - 3] instanceof ConfKey) {
+                String list = ((ConfTag) kp[n - 2]).getTag();
+                String key = ((ConfKey) kp[n - 3]).elementAt(0).toString();
+                Set<String> s = keys.get(list);
+                if (s == null) {
+                    s = new HashSet<String>();
+                    keys.put(list, s);
+                }
+                s.add(key);
+                return DiffIterateResultFlag.ITER_CONTINUE;
+            }
+            return DiffIterateResultFlag.ITER_RECURSE;
+        }
+
+        boolean isAll() {
+            return all;
+        }
+
+        Set<String> keys(String list) {
+            Set<String> s = keys.get(list);
+            return s == null ? new HashSet<String>() : s;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.l3vpn;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.cdb.*;
+import com.tailf.conf.*;
+import com.tailf.ncs.ApplicationComponent;
+import com.tailf.ncs.ns.Ncs;
+import com.tailf.ncs.annotations.Resource;
+import com.tailf.ncs.annotations.ResourceType;
+import com.tailf.ncs.annotations.Scope;
+
+/**
+ * CDB operational subscriber dropping the DeviceSyncCache entries of
+ * devices whose capabilities change, e.g. by a connect or sync-from.
+ *
+ * The capabilities are operational data, a subscription on the running
+ * configuration does not see them change.
+ */
+public class DeviceCapabilitySubscriber implements ApplicationComponent {
+
+    private static final Logger LOGGER =
+        Logger.getLogger(DeviceCapabilitySubscriber.class);
+
+    @Resource(type=ResourceType.CDB, scope=Scope.INSTANCE,
+              qualifier="l3vpn-capability-subscriber")
+    private Cdb subCdb;
+
+    private CdbSubscription sub;
+    private volatile boolean running = false;
+
+    public void init() throws Exception {
+        sub = subCdb.newSubscription();
+        sub.subscribe(CdbSubscriptionType.SUB_OPERATIONAL, 1, new Ncs(),
+                      "/devices/device/capability");
+        sub.subscribeDone();
+        running = true;
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                int[] points = sub.read();
+                DeviceCollector changed = new DeviceCollector();
+                for (int point : points) {
+                    sub.diffIterate(point, changed);
+                }
+                DeviceSyncCache.getInstance().invalidate(changed.devices());
+                sub.sync(CdbSubscriptionSyncType.DONE_OPERATIONAL);
+            }
+        } catch (Exception e) {
+            if (running) {
+                LOGGER.error("l3vpn capability subscriber stopped, device " +
+                             "caching disabled until the package is " +
+                             "reloaded", e);
+            }
+            DeviceSyncCache.getInstance().disable();
+        }
+    }
+
+    public void finish() throws Exception {
+        running = false;
+        try {
+            subCdb.close();
+        } catch (Exception ignore) {
+        }
+    }
+
+    /**
+     * Collects the names of the devices changed below the subscription
+     * point, e.g. {ce0} for /ncs:devices/device{ce0}/capability{...}.
+     */
+    static class DeviceCollector implements CdbDiffIterate {
+        private final Set<String> devices = new HashSet<String>();
+
+        public DiffIterateResultFlag iterate(ConfObject[] kp,
+                                             DiffIterateOperFlag op,
+                                             ConfObject oldValue,
+                                             ConfObject newValue,
+                                             Object initstate) {
+            // {key} device devices
+            int n = kp.length;
+            if (n < 3) {
+                return DiffIterateResultFlag.ITER_RECURSE;
+            }
+            devices.add(((ConfKey) kp[n - 3]).elementAt(0).toString());
+            return DiffIterateResultFlag.ITER_CONTINUE;
+        }
+
+        Set<String> devices() {
+            return devices;
+        }
+    }
+}
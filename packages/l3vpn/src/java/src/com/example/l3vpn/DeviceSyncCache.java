@@ -0,0 +1,99 @@
+package com.example.l3vpn;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tailf.dp.DpCallbackException;
+import com.tailf.navu.NavuContainer;
+import com.tailf.navu.NavuException;
+import com.tailf.navu.NavuList;
+
+/**
+ * Remembers which managed devices are known to have capabilities, i.e.
+ * that have been connected to or sync-from:ed at least once.
+ *
+ * Only positive answers are cached. Entries are dropped by the
+ * DeviceCapabilitySubscriber when the capabilities of a device change,
+ * and by the CacheSubscriber when a device is created or deleted.
+ */
+public final class DeviceSyncCache {
+
+    private static final DeviceSyncCache INSTANCE = new DeviceSyncCache();
+
+    private final ConcurrentHashMap<String, Boolean> synced =
+        new ConcurrentHashMap<String, Boolean>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean disabled = false;
+
+    private DeviceSyncCache() {
+    }
+
+    public static DeviceSyncCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Check that the device has known capabilities.
+     *
+     * @param devices - the /ncs:devices/device list
+     * @param name - the device to check
+     * @throws DpCallbackException if the device has no capabilities
+     * @throws NavuException
+     */
+    public void check(NavuList devices, String name)
+        throws DpCallbackException, NavuException {
+        if (synced.containsKey(name)) {
+            hits.incrementAndGet();
+            return;
+        }
+        misses.incrementAndGet();
+        long gen = generation.get();
+        NavuContainer device = devices.elem(name);
+        if (device == null || device.list("capability").isEmpty()) {
+            String mess = "Device %1$s has no known capabilities, " +
+                          "has sync-from been performed?";
+            throw new DpCallbackException(String.format(mess, name));
+        }
+        // Do not cache an answer read while the device was invalidated
+        if (gen == generation.get() && !disabled) {
+            synced.put(name, Boolean.TRUE);
+        }
+    }
+
+    public void invalidate(Collection<String> names) {
+        generation.incrementAndGet();
+        for (String name : names) {
+            synced.remove(name);
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        synced.clear();
+    }
+
+    /**
+     * Stop caching, when the cache can no longer be invalidated. Every
+     * device is checked until the package is reloaded.
+     */
+    public void disable() {
+        disabled = true;
+        invalidateAll();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void resetCounters() {
+        hits.set(0);
+        misses.set(0);
+    }
+}
@@ -0,0 +1,507 @@
+package com.example.l3vpn;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.conf.Conf;
+import com.tailf.conf.ConfException;
+import com.tailf.conf.ConfKey;
+import com.tailf.maapi.Maapi;
+import com.tailf.navu.NavuContainer;
+import com.tailf.navu.NavuContext;
+import com.tailf.navu.NavuList;
+import com.tailf.ncs.NcsMain;
+
+/**
+ * Drift check of l3vpn service instances against the device config in
+ * CDB, without a commit dry-run or check-sync.
+ *
+ * The key facts a service puts on its devices, the VRF and its route
+ * distinguisher, the BGP neighbor, the VLAN sub-interface, the
+ * policy-maps and the ACLs, are derived from the planned template
+ * applications and looked up in the device config. Only the facts of
+ * the NED of a device, told by its capabilities, are checked.
+ *
+ * Services are checked by up to WORKERS threads, each with its own
+ * MAAPI connection and read transaction in the user session of the
+ * action, so the services and devices are read as the user may see
+ * them. Reading a service records no mapping statistics and fills no
+ * caches.
+ */
+public final class DriftCheck {
+
+    private static final Logger LOGGER = Logger.getLogger(DriftCheck.class);
+
+    static final int WORKERS = 4;
+
+    private static final String IOS = "urn:ios";
+    private static final String IOSXR = "http://tail-f.com/ned/cisco-ios-xr";
+    private static final String JUNOS = "http://xml.juniper.net/xnm/1.1/xnm";
+    private static final String ALU = "http://tail-f.com/ned/alu-sr";
+    private static final String[] NEDS = {IOS, IOSXR, JUNOS, ALU};
+
+    private static final String DEVICE = "/ncs:devices/device{%s}";
+    private static final String PRESENT = "present";
+    private static final String MISSING = "missing";
+
+    /**
+     * A path in the config of a device and its expected value, null if
+     * it only has to exist.
+     */
+    static final class Fact {
+        final String device;
+        final String ned;
+        final String name;
+        final String expected;
+        final String path;
+        final Object[] args;
+
+        Fact(String device, String ned, String name, String expected,
+             String path, Object... args) {
+            this.device = device;
+            this.ned = ned;
+            this.name = name;
+            this.expected = expected;
+            this.path = path;
+            this.args = args;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fact)) {
+                return false;
+            }
+            Fact f = (Fact) o;
+            return device.equals(f.device) && path.equals(f.path) &&
+                Arrays.equals(args, f.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return (device.hashCode() * 31 + path.hashCode()) * 31 +
+                Arrays.hashCode(args);
+        }
+    }
+
+    /**
+     * A fact of a service not found in the device config.
+     */
+    public static final class Mismatch {
+        private final String service;
+        private final String device;
+        private final String fact;
+        private final String expected;
+        private final String actual;
+
+        Mismatch(String service, String device, String fact,
+                 String expected, String actual) {
+            this.service = service;
+            this.device = device;
+            this.fact = fact;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public String getFact() {
+            return fact;
+        }
+
+        public String getExpected() {
+            return expected;
+        }
+
+        public String getActual() {
+            return actual;
+        }
+    }
+
+    /**
+     * Outcome of a check.
+     */
+    public static final class Result {
+        private final int services;
+        private final int facts;
+        private final List<Mismatch> mismatches;
+
+        Result(int services, int facts, List<Mismatch> mismatches) {
+            this.services = services;
+            this.facts = facts;
+            this.mismatches = mismatches;
+        }
+
+        public int getServices() {
+            return services;
+        }
+
+        public int getFacts() {
+            return facts;
+        }
+
+        /**
+         * The mismatches by service.
+         */
+        public List<Mismatch> getMismatches() {
+            return mismatches;
+        }
+    }
+
+    private DriftCheck() {
+    }
+
+    /**
+     * Check service instances.
+     *
+     * @param services - the services to check, all if empty
+     * @param usid - the user session to read in
+     * @return the mismatches found
+     */
+    public static Result check(Collection<String> services, final int usid)
+        throws ConfException, IOException {
+        Set<String> names = services.isEmpty() ?
+            allServices(usid) : new LinkedHashSet<String>(services);
+        final Iterator<String> queue = names.iterator();
+        int total = names.size();
+
+        // Capabilities are looked up once per device and check
+        final Map<String, String> neds = new HashMap<String, String>();
+        final Map<String, List<Mismatch>> found =
+            new TreeMap<String, List<Mismatch>>();
+        final int[] facts = new int[1];
+
+        int workers = Math.min(WORKERS, total);
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.max(1, workers));
+        List<Future<Void>> running = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < workers; i++) {
+                running.add(pool.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            checkAll(usid, queue, neds, found, facts);
+                            return null;
+                        }
+                    }));
+            }
+            for (Future<Void> f : running) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConfException) {
+                throw (ConfException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IllegalStateException(cause.getMessage(), cause);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<Mismatch> mismatches = new ArrayList<Mismatch>();
+        for (List<Mismatch> m : found.values()) {
+            mismatches.addAll(m);
+        }
+        return new Result(total, facts[0], mismatches);
+    }
+
+    /**
+     * The facts of the service on its devices, each once.
+     */
+    static List<Fact> facts(ServiceSnapshot snapshot) {
+        String name = snapshot.getName();
+        String rd = snapshot.getRouteDistinguisher();
+        Set<Fact> facts = new LinkedHashSet<Fact>();
+        for (TemplateOp op : MappingPlanner.plan(snapshot)) {
+            Map<String, String> v = op.getVariables();
+            String template = op.getTemplate();
+            if (MappingPlanner.PE.equals(template)) {
+                peFacts(name, rd, v, facts);
+            } else if (MappingPlanner.CE.equals(template)) {
+                ceFacts(name, v, facts);
+            } else if (MappingPlanner.QOS.equals(template) ||
+                       MappingPlanner.QOS_PRIO.equals(template)) {
+                facts.add(new Fact(v.get("CE"), IOS, "policy-map", null,
+                                   "/config/ios:policy-map{%s}",
+                                   v.get("POLICY_NAME")));
+            } else if (MappingPlanner.QOS_PE.equals(template) ||
+                       MappingPlanner.QOS_PE_PRIO.equals(template)) {
+                facts.add(new Fact(v.get("PE"), IOSXR, "policy-map", null,
+                                   "/config/cisco-ios-xr:policy-map{%s}",
+                                   v.get("POLICY_NAME")));
+            } else if (MappingPlanner.ACL.equals(template)) {
+                facts.add(new Fact(
+                    v.get("CE"), IOS, "acl", null,
+                    "/config/ios:ip/access-list/extended/ext-named-acl{%s}",
+                    v.get("ACL_NAME")));
+            }
+        }
+        return new ArrayList<Fact>(facts);
+    }
+
+    // What l3vpn-pe.xml configures, per NED
+    private static void peFacts(String name, String rd, Map<String, String> v,
+                                Set<Fact> facts) {
+        String pe = v.get("PE");
+        String ce = v.get("CE");
+        String vlan = v.get("VLAN_ID");
+        String peIf = v.get("PE_INT_NAME");
+        String ceAdr = v.get("LINK_CE_ADR");
+        String asn = v.get("CE_AS_NUM");
+
+        facts.add(new Fact(pe, IOS, "route-distinguisher", rd + ":1",
+                           "/config/ios:vrf/definition{%s}/rd", name));
+        facts.add(new Fact(pe, IOS, "bgp-neighbor", null,
+                           "/config/ios:router/bgp{100}/address-family/" +
+                           "with-vrf/ipv4{unicast}/vrf{%s}/neighbor{%s}",
+                           name, ceAdr));
+        if (peIf.startsWith("GigabitEthernet")) {
+            facts.add(new Fact(pe, IOS, "vlan-subinterface", vlan,
+                               "/config/ios:interface/GigabitEthernet{%s}/" +
+                               "encapsulation/dot1Q/vlan-id",
+                               peIf.substring(15) + "." + vlan));
+        }
+
+        String xrVrf = "/config/cisco-ios-xr:router/bgp/" +
+            "bgp-no-instance{100}/vrf{%s}";
+        facts.add(new Fact(pe, IOSXR, "vrf", null,
+                           "/config/cisco-ios-xr:vrf/vrf-list{%s}", name));
+        facts.add(new Fact(pe, IOSXR, "route-distinguisher", rd + ":1",
+                           xrVrf + "/rd", name));
+        facts.add(new Fact(pe, IOSXR, "bgp-neighbor", null,
+                           xrVrf + "/neighbor{%s}", name, ceAdr));
+        if (peIf.startsWith("GigabitEthernet")) {
+            facts.add(new Fact(pe, IOSXR, "vlan-subinterface", vlan,
+                               "/config/cisco-ios-xr:interface/" +
+                               "GigabitEthernet-subinterface/" +
+                               "GigabitEthernet{%s}/encapsulation/dot1q/" +
+                               "vlan-id",
+                               peIf.substring(15) + "." + vlan));
+        } else if (peIf.startsWith("TenGigE")) {
+            facts.add(new Fact(pe, IOSXR, "vlan-subinterface", vlan,
+                               "/config/cisco-ios-xr:interface/" +
+                               "TenGigE-subinterface/TenGigE{%s}/" +
+                               "encapsulation/dot1q/vlan-id",
+                               peIf.substring(7) + "." + vlan));
+        }
+        facts.add(new Fact(pe, IOSXR, "policy-map", null,
+                           "/config/cisco-ios-xr:policy-map{%s}",
+                           name + "-" + ce));
+
+        String instance =
+            "/config/junos:configuration/routing-instances/instance{%s}";
+        facts.add(new Fact(pe, JUNOS, "route-distinguisher", rd + ":1",
+                           instance + "/route-distinguisher/rd-type",
+                           name));
+        facts.add(new Fact(pe, JUNOS, "bgp-neighbor", null,
+                           instance + "/protocols/bgp/group{%s}/" +
+                           "neighbor{%s}",
+                           name, ce + "-" + name, ceAdr));
+        facts.add(new Fact(pe, JUNOS, "vlan-subinterface", vlan,
+                           "/config/junos:configuration/interfaces/" +
+                           "interface{%s}/unit{%s}/vlan-id",
+                           peIf, vlan));
+
+        String vprn = "/config/alu:service/vprn{%s}";
+        facts.add(new Fact(pe, ALU, "route-distinguisher", rd + ":" + vlan,
+                           vprn + "/route-distinguisher", asn));
+        facts.add(new Fact(pe, ALU, "bgp-neighbor", null,
+                           vprn + "/bgp/group{%s}/neighbor{%s}",
+                           asn, name + "-" + ce, ceAdr));
+        facts.add(new Fact(pe, ALU, "vlan-subinterface", null,
+                           vprn + "/interface{%s}/sap{%s}",
+                           asn, name + "-" + ce, peIf + ":" + vlan));
+    }
+
+    // What l3vpn-ce.xml configures, the CEs are IOS
+    private static void ceFacts(String name, Map<String, String> v,
+                                Set<Fact> facts) {
+        String ce = v.get("CE");
+        String vlan = v.get("VLAN_ID");
+        String ceIf = v.get("CE_INT_NAME");
+
+        facts.add(new Fact(ce, IOS, "bgp-neighbor", null,
+                           "/config/ios:router/bgp{%s}/neighbor{%s}",
+                           v.get("CE_AS_NUM"), v.get("LINK_PE_ADR")));
+        if (ceIf.startsWith("GigabitEthernet")) {
+            facts.add(new Fact(ce, IOS, "vlan-subinterface", vlan,
+                               "/config/ios:interface/GigabitEthernet{%s}/" +
+                               "encapsulation/dot1Q/vlan-id",
+                               ceIf.substring(15) + "." + vlan));
+        }
+        facts.add(new Fact(ce, IOS, "policy-map", null,
+                           "/config/ios:policy-map{%s}", name));
+    }
+
+    // Check services from the queue until it is empty
+    private static void checkAll(int usid, Iterator<String> queue,
+                                 Map<String, String> neds,
+                                 Map<String, List<Mismatch>> found,
+                                 int[] facts)
+        throws ConfException, IOException {
+        Socket socket = connect();
+        try {
+            Maapi maapi = new Maapi(socket);
+            maapi.setUserSession(usid);
+            int th = maapi.startTrans(Conf.DB_RUNNING, Conf.MODE_READ);
+            try {
+                NavuContainer l3vpn = new NavuContainer(
+                    new NavuContext(maapi, th)).
+                    container("http://com/example/l3vpn");
+                NavuContainer topology = l3vpn.container("topology");
+                NavuList vpns = l3vpn.container("vpn").list("l3vpn");
+                String service;
+                while ((service = next(queue)) != null) {
+                    List<Mismatch> m = new ArrayList<Mismatch>();
+                    int n = checkService(maapi, th, vpns, topology,
+                                         service, neds, m);
+                    synchronized (found) {
+                        facts[0] += n;
+                        if (!m.isEmpty()) {
+                            found.put(service, m);
+                        }
+                    }
+                }
+            } finally {
+                maapi.finishTrans(th);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return the number of facts checked
+     */
+    private static int checkService(Maapi maapi, int th, NavuList vpns,
+                                    NavuContainer topology, String service,
+                                    Map<String, String> neds,
+                                    List<Mismatch> mismatches)
+        throws ConfException, IOException {
+        List<Fact> facts;
+        try {
+            NavuContainer vpn = vpns.elem(service);
+            if (vpn == null) {
+                mismatches.add(new Mismatch(service, null, "service",
+                                            PRESENT, MISSING));
+                return 0;
+            }
+            facts = facts(ServiceSnapshot.read(vpn, topology, false));
+        } catch (ConfException e) {
+            // E.g. a CE not in the topology, the service can not be
+            // deployed as it is
+            LOGGER.warn("drift check of l3vpn " + service, e);
+            mismatches.add(new Mismatch(service, null, "service", PRESENT,
+                                        String.valueOf(e.getMessage())));
+            return 0;
+        }
+
+        int checked = 0;
+        for (Fact fact : facts) {
+            if (!fact.ned.equals(ned(maapi, th, fact.device, neds))) {
+                continue;
+            }
+            checked++;
+            Object[] args = new Object[fact.args.length + 1];
+            args[0] = fact.device;
+            System.arraycopy(fact.args, 0, args, 1, fact.args.length);
+            String path = DEVICE + fact.path;
+            String actual = MISSING;
+            if (maapi.exists(th, path, args)) {
+                actual = fact.expected == null ?
+                    PRESENT : String.valueOf(maapi.getElem(th, path, args));
+            }
+            String expected = fact.expected == null ?
+                PRESENT : fact.expected;
+            if (!expected.equals(actual)) {
+                mismatches.add(new Mismatch(service, fact.device, fact.name,
+                                            expected, actual));
+            }
+        }
+        return checked;
+    }
+
+    // The NED of the device from its capabilities, "" if unknown
+    private static String ned(Maapi maapi, int th, String device,
+                              Map<String, String> neds)
+        throws ConfException, IOException {
+        synchronized (neds) {
+            if (neds.containsKey(device)) {
+                return neds.get(device);
+            }
+        }
+        String ned = "";
+        for (String uri : NEDS) {
+            if (maapi.exists(th, DEVICE + "/capability{%s}", device, uri)) {
+                ned = uri;
+                break;
+            }
+        }
+        synchronized (neds) {
+            neds.put(device, ned);
+        }
+        return ned;
+    }
+
+    private static Set<String> allServices(int usid)
+        throws ConfException, IOException {
+        Socket socket = connect();
+        try {
+            Maapi maapi = new Maapi(socket);
+            maapi.setUserSession(usid);
+            int th = maapi.startTrans(Conf.DB_RUNNING, Conf.MODE_READ);
+            try {
+                Set<String> services = new LinkedHashSet<String>();
+                for (ConfKey key : new NavuContainer(
+                         new NavuContext(maapi, th)).
+                         container("http://com/example/l3vpn").
+                         container("vpn").list("l3vpn").keySet()) {
+                    services.add(key.elementAt(0).toString());
+                }
+                return services;
+            } finally {
+                maapi.finishTrans(th);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String next(Iterator<String> queue) {
+        synchronized (queue) {
+            return queue.hasNext() ? queue.next() : null;
+        }
+    }
+
+    private static Socket connect() throws IOException {
+        return new Socket(NcsMain.getInstance().getNcsHost(),
+                          NcsMain.getInstance().getNcsPort());
+    }
+}
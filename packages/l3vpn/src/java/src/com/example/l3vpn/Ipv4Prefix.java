@@ -0,0 +1,169 @@
+package com.example.l3vpn;
+
+/**
+ * An IPv4 address with a prefix length, e.g. 192.168.1.1/30, held as a
+ * primitive int.
+ *
+ * The string is parsed once and addresses, masks and the next host
+ * address are formatted straight from the int.
+ */
+public final class Ipv4Prefix {
+
+    private final int address;
+    private final int length;
+
+    public Ipv4Prefix(int address, int length) {
+        if (length < 0 || length > 32) {
+            throw new IllegalArgumentException(
+                "Bad IPv4 prefix length: " + length);
+        }
+        this.address = address;
+        this.length = length;
+    }
+
+    /**
+     * Parse "a.b.c.d/len". A missing length is taken as /32.
+     *
+     * @param s - the address and prefix length
+     * @return the parsed prefix
+     * @throws IllegalArgumentException if s is not an IPv4 prefix
+     */
+    public static Ipv4Prefix parse(String s) {
+        int addr = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        int i = 0;
+        int n = s.length();
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    throw bad(s);
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                addr = addr << 8 | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else if (c == '/') {
+                break;
+            } else {
+                throw bad(s);
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            throw bad(s);
+        }
+        addr = addr << 8 | octet;
+
+        int len = 32;
+        if (i < n) {
+            if (i + 1 == n || n - i > 3) {
+                throw bad(s);
+            }
+            len = 0;
+            for (i++; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw bad(s);
+                }
+                len = len * 10 + (c - '0');
+            }
+            if (len > 32) {
+                throw bad(s);
+            }
+        }
+        return new Ipv4Prefix(addr, len);
+    }
+
+    private static IllegalArgumentException bad(String s) {
+        return new IllegalArgumentException("Bad IPv4 prefix: " + s);
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getNetmask() {
+        return length == 0 ? 0 : 0xffffffff << (32 - length);
+    }
+
+    public int getWildcardMask() {
+        return ~getNetmask();
+    }
+
+    /**
+     * The next address with the same prefix length, skipping over
+     * addresses ending in .255.
+     */
+    public Ipv4Prefix nextHost() {
+        int next = address + 1;
+        if ((next & 0xff) == 0xff) {
+            next++;
+        }
+        return new Ipv4Prefix(next, length);
+    }
+
+    public String addressString() {
+        return format(address);
+    }
+
+    public String netmaskString() {
+        return format(getNetmask());
+    }
+
+    public String wildcardMaskString() {
+        return format(getWildcardMask());
+    }
+
+    public String lengthString() {
+        return String.valueOf(length);
+    }
+
+    /**
+     * Dotted quad form of an address held in an int.
+     */
+    public static String format(int addr) {
+        char[] buf = new char[15];
+        int pos = 0;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            int octet = addr >>> shift & 0xff;
+            if (octet >= 100) {
+                buf[pos++] = (char) ('0' + octet / 100);
+            }
+            if (octet >= 10) {
+                buf[pos++] = (char) ('0' + octet / 10 % 10);
+            }
+            buf[pos++] = (char) ('0' + octet % 10);
+            if (shift > 0) {
+                buf[pos++] = '.';
+            }
+        }
+        return new String(buf, 0, pos);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Ipv4Prefix)) {
+            return false;
+        }
+        Ipv4Prefix p = (Ipv4Prefix) o;
+        return address == p.address && length == p.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return address * 31 + length;
+    }
+
+    @Override
+    public String toString() {
+        return addressString() + "/" + length;
+    }
+}
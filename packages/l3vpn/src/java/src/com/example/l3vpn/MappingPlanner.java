@@ -0,0 +1,358 @@
+package com.example.l3vpn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plan phase of the service mapping. Turns a ServiceSnapshot into the
+ * ordered list of template applications for the service without
+ * touching NCS.
+ *
+ * Endpoints are planned independently of each other, on a shared thread
+ * pool when the service is large. The result is always in endpoint
+ * order.
+ */
+public final class MappingPlanner {
+
+    public static final String PE = "l3vpn-pe";
+    public static final String CE = "l3vpn-ce";
+    public static final String QOS = "l3vpn-qos";
+    public static final String QOS_PE = "l3vpn-qos-pe";
+    public static final String QOS_PRIO = "l3vpn-qos-prio";
+    public static final String QOS_PE_PRIO = "l3vpn-qos-pe-prio";
+    public static final String ACL = "l3vpn-acl";
+    public static final String QOS_CLASS = "l3vpn-qos-class";
+    public static final String QOS_PE_CLASS = "l3vpn-qos-pe-class";
+
+    // The $VARIABLES referenced by each template in ../templates. Planned
+    // applications only carry these, so that applications differing in
+    // unused variables only are recognized as duplicates. Checked against
+    // the templates by TemplateVariablesTest.
+    private static final Map<String, String[]> TEMPLATE_VARIABLES =
+        new HashMap<String, String[]>();
+    static {
+        variables(PE, "BW", "CE", "CE_AS_NUM", "CE_INT_NAME", "LINK_CE_ADR",
+                  "LINK_MASK", "LINK_PE_ADR", "LINK_PREFIX", "PE",
+                  "PE_INT_NAME", "VLAN_ID");
+        variables(CE, "BW", "CE", "CE_AS_NUM", "CE_INT_NAME",
+                  "CE_LOCAL_INT_NAME", "CE_MASK", "LINK_CE_ADR", "LINK_MASK",
+                  "LINK_PE_ADR", "LOCAL_CE_ADR", "LOCAL_CE_NET", "PE",
+                  "PE_INT_NAME", "VLAN_ID");
+        variables(QOS, "CE", "CLASS_BW", "CLASS_DSCP", "CLASS_NAME",
+                  "POLICY_NAME");
+        variables(QOS_PE, "CE", "CLASS_BW", "CLASS_NAME", "PE",
+                  "PE_INT_NAME", "POLICY_NAME", "VLAN_ID");
+        variables(QOS_PRIO, "CE", "CLASS_BW", "CLASS_DSCP", "CLASS_NAME",
+                  "PE_INT_NAME", "POLICY_NAME", "VLAN_ID");
+        variables(QOS_PE_PRIO, "CE", "CLASS_BW", "CLASS_NAME", "PE",
+                  "PE_INT_NAME", "POLICY_NAME", "VLAN_ID");
+        variables(ACL, "ACL_NAME", "CE", "DEST_IP_ADR", "DEST_WMASK",
+                  "PORT_END", "PORT_START", "PROTOCOL", "SOURCE_IP_ADR",
+                  "SOURCE_WMASK");
+        variables(QOS_CLASS, "CE", "CLASS_NAME", "MATCH_ENTRY");
+        variables(QOS_PE_CLASS, "CE", "CLASS_COUNTER", "CLASS_DSCP",
+                  "CLASS_NAME", "CLASS_PRIORITY", "PE", "POLICY_NAME");
+    }
+
+    // Smaller services are planned in the calling thread
+    static final int PARALLEL_THRESHOLD = 32;
+
+    private static final int THREADS =
+        Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService pool = null;
+
+    private MappingPlanner() {
+    }
+
+    private static void variables(String template, String... names) {
+        String[] sorted = names.clone();
+        Arrays.sort(sorted);
+        TEMPLATE_VARIABLES.put(template, sorted);
+    }
+
+    /**
+     * The variables of the template, sorted, or null if the template is
+     * not one of the feature templates. Not to be modified.
+     */
+    static String[] variableNames(String template) {
+        return TEMPLATE_VARIABLES.get(template);
+    }
+
+    /**
+     * A planned application carrying only the variables the template
+     * uses.
+     */
+    private static TemplateOp op(String template, Map<String, String> vars) {
+        return new TemplateOp(template, TEMPLATE_VARIABLES.get(template),
+                              vars);
+    }
+
+    /**
+     * As op(template, vars) with CE set to ceName, saves copying the
+     * shared ACL variables for every endpoint.
+     */
+    private static TemplateOp op(String template, Map<String, String> vars,
+                                 String ceName) {
+        String[] names = TEMPLATE_VARIABLES.get(template);
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = "CE".equals(names[i]) ? ceName : vars.get(names[i]);
+        }
+        return new TemplateOp(template, names, values);
+    }
+
+    /**
+     * Plan all template applications of the service.
+     *
+     * @param snapshot - the service instance
+     * @return the template applications in the order to apply them
+     */
+    public static List<TemplateOp> plan(ServiceSnapshot snapshot) {
+        List<TemplateOp> ops = new ArrayList<TemplateOp>();
+        for (List<TemplateOp> endpointOps :
+                 plan(snapshot, snapshot.getEndpoints())) {
+            ops.addAll(endpointOps);
+        }
+        return ops;
+    }
+
+    /**
+     * Plan the template applications of some endpoints of the service.
+     *
+     * @param snapshot - the service instance
+     * @param endpoints - endpoints of the service
+     * @return the applications of each endpoint, in endpoint order
+     */
+    public static List<List<TemplateOp>> plan(
+        final ServiceSnapshot snapshot,
+        List<ServiceSnapshot.Endpoint> endpoints) {
+        if (endpoints.size() < PARALLEL_THRESHOLD || THREADS == 1) {
+            return planEndpoints(snapshot, endpoints);
+        }
+
+        int chunk = (endpoints.size() + THREADS * 4 - 1) / (THREADS * 4);
+        List<Future<List<List<TemplateOp>>>> parts =
+            new ArrayList<Future<List<List<TemplateOp>>>>();
+        ExecutorService executor = getPool();
+        for (int i = 0; i < endpoints.size(); i += chunk) {
+            final List<ServiceSnapshot.Endpoint> part =
+                endpoints.subList(i, Math.min(i + chunk, endpoints.size()));
+            parts.add(executor.submit(
+                new Callable<List<List<TemplateOp>>>() {
+                    public List<List<TemplateOp>> call() {
+                        return planEndpoints(snapshot, part);
+                    }
+                }));
+        }
+
+        List<List<TemplateOp>> ops = new ArrayList<List<TemplateOp>>();
+        try {
+            for (Future<List<List<TemplateOp>>> part : parts) {
+                ops.addAll(part.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while planning", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause.getMessage(), cause);
+        } finally {
+            for (Future<List<List<TemplateOp>>> part : parts) {
+                part.cancel(true);
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Drop exact duplicates, keeping the first occurrence of each.
+     *
+     * The variables of every planned application include the device it
+     * configures, so duplicates are the same template written to the
+     * same device with the same values, e.g. the global ACLs and
+     * class-maps of several endpoints sharing a CE or PE.
+     *
+     * @param plans - planned applications of each endpoint
+     * @return the applications of each endpoint not planned before it,
+     *         by an earlier endpoint or earlier for the same endpoint
+     */
+    public static List<List<TemplateOp>> distinct(
+        List<List<TemplateOp>> plans) {
+        Set<TemplateOp> seen = new HashSet<TemplateOp>();
+        List<List<TemplateOp>> result = new ArrayList<List<TemplateOp>>();
+        for (List<TemplateOp> ops : plans) {
+            List<TemplateOp> distinct = new ArrayList<TemplateOp>();
+            for (TemplateOp op : ops) {
+                if (seen.add(op)) {
+                    distinct.add(op);
+                }
+            }
+            result.add(distinct);
+        }
+        return result;
+    }
+
+    static List<List<TemplateOp>> planEndpoints(
+        ServiceSnapshot snapshot, List<ServiceSnapshot.Endpoint> endpoints) {
+        List<List<TemplateOp>> ops = new ArrayList<List<TemplateOp>>();
+        for (ServiceSnapshot.Endpoint endpoint : endpoints) {
+            List<TemplateOp> endpointOps = new ArrayList<TemplateOp>();
+            planEndpoint(snapshot, endpoint, endpointOps);
+            ops.add(endpointOps);
+        }
+        return ops;
+    }
+
+    /**
+     * Plan the template applications for one endpoint.
+     *
+     * @param snapshot - the service instance
+     * @param endpoint - an endpoint of the service
+     * @param ops - list the applications are added to
+     */
+    public static void planEndpoint(ServiceSnapshot snapshot,
+                                    ServiceSnapshot.Endpoint endpoint,
+                                    List<TemplateOp> ops) {
+        String ceName = endpoint.getCeDevice();
+        TopologyIndex.Link conn = endpoint.getLink();
+        TopologyIndex.LinkEndpoint peEndpoint = conn.getConnectedEndpoint();
+        TopologyIndex.LinkEndpoint ceEndpoint = conn.getMyEndpoint();
+        String vlan = conn.getVlan();
+
+        Map<String, String> vpnVar = new LinkedHashMap<String, String>();
+
+        vpnVar.put("PE", peEndpoint.getDevice());
+        vpnVar.put("CE", ceName);
+        vpnVar.put("CE_AS_NUM", endpoint.getAsNumber());
+        vpnVar.put("VLAN_ID", vlan);
+        Ipv4Prefix peLink = peEndpoint.getIpPrefix();
+        Ipv4Prefix ceLink = ceEndpoint.getIpPrefix();
+        Ipv4Prefix ceNet = endpoint.getIpNetwork();
+        vpnVar.put("LINK_PE_ADR", peLink.addressString());
+        vpnVar.put("LINK_CE_ADR", ceLink.addressString());
+        vpnVar.put("LINK_MASK", ceLink.netmaskString());
+        vpnVar.put("LINK_PREFIX", ceLink.lengthString());
+        vpnVar.put("PE_INT_NAME", peEndpoint.getInterface());
+        vpnVar.put("CE_INT_NAME", ceEndpoint.getInterface());
+        vpnVar.put("CE_LOCAL_INT_NAME", endpoint.getCeInterface());
+        vpnVar.put("LOCAL_CE_ADR", ceNet.nextHost().addressString());
+        vpnVar.put("LOCAL_CE_NET", ceNet.addressString());
+        vpnVar.put("CE_MASK", ceNet.netmaskString());
+        vpnVar.put("BW", endpoint.getBandwidth());
+
+        ops.add(op(PE, vpnVar));
+        ops.add(op(CE, vpnVar));
+
+        // Start of QOS section
+
+        QosPolicy qosPolicy = snapshot.getQosPolicy();
+        if (qosPolicy == null) {
+            return;
+        }
+        Map<String, List<String>> qosClassMap =
+            new LinkedHashMap<String, List<String>>();
+
+        Map<String, String> qosVar = new LinkedHashMap<String, String>();
+        qosVar.put("POLICY_NAME", qosPolicy.getName());
+        qosVar.put("CE_INT_NAME", ceEndpoint.getInterface());
+        qosVar.put("PE_INT_NAME", peEndpoint.getInterface());
+        qosVar.put("VLAN_ID", vlan);
+        qosVar.put("PE", peEndpoint.getDevice());
+        qosVar.put("CE", ceName);
+
+        // Iterate over all classes for this policy and its settings.
+        for (QosPolicy.QosClass c : qosPolicy.getClasses()) {
+            qosClassMap.put(c.getName(),
+                            new ArrayList<String>(c.getMatchEntries()));
+
+            qosVar.put("CLASS_DSCP", c.getDscp());
+            qosVar.put("CLASS_PRIORITY", c.getPriority());
+            qosVar.put("CLASS_NAME", c.getName());
+            qosVar.put("CLASS_BW", c.getBandwidth());
+            qosVar.put("CLASS_COUNTER", c.getCounter());
+
+            if (c.isPrio()) {
+                ops.add(op(QOS_PRIO, qosVar));
+                ops.add(op(QOS_PE_PRIO, qosVar));
+            }
+            else {
+                ops.add(op(QOS, qosVar));
+                ops.add(op(QOS_PE, qosVar));
+            }
+            ops.add(op(QOS_PE_CLASS, qosVar));
+
+            // ACLs for the globally defined traffic match statements
+            // for this class.
+            for (Map<String, String> acl : c.getAclVariables()) {
+                ops.add(op(ACL, acl, ceName));
+            }
+        }
+
+        // Create ACL entries for all service specific match rules
+
+        String namePrefix = snapshot.getName();
+        for (ServiceSnapshot.CustomMatch match :
+                 snapshot.getCustomMatches()) {
+            if (qosClassMap.containsKey(match.getQosClass())) {
+                qosClassMap.get(match.getQosClass()).
+                    add(namePrefix + "-" + match.getName());
+            }
+            ops.add(op(ACL, match.getAclVariables(namePrefix), ceName));
+        }
+
+        for (Map.Entry<String, List<String>> entry :
+                 qosClassMap.entrySet()) {
+            for (String matchEntry : entry.getValue()) {
+                Map<String, String> classVar =
+                    new LinkedHashMap<String, String>();
+                classVar.put("CLASS_NAME", entry.getKey());
+                classVar.put("MATCH_ENTRY", matchEntry);
+                classVar.put("CE", ceName);
+                ops.add(op(QOS_CLASS, classVar));
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "l3vpn-planner-" +
+                                              count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return pool;
+    }
+
+    /**
+     * Stop the planner threads, called when the package is stopped.
+     */
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+}
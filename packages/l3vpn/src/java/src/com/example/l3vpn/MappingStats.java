@@ -0,0 +1,279 @@
+package com.example.l3vpn;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and volume counters of the service mapping since the package
+ * was started or the stats were reset. Read by the StatsDataProvider
+ * for /l3vpn:vpn/stats.
+ *
+ * Recording is lock free and does not allocate once a phase or template
+ * has been seen.
+ */
+public final class MappingStats {
+
+    public static final String READ = "read";
+    public static final String TOPOLOGY_LOOKUP = "topology-lookup";
+    public static final String QOS_POLICY = "qos-policy";
+    public static final String DEVICE_CHECK = "device-check";
+    public static final String PLAN = "plan";
+    public static final String APPLY = "apply";
+    public static final String TOTAL = "total";
+
+    private static final MappingStats INSTANCE = new MappingStats();
+
+    /**
+     * Latency histogram with power of two microsecond buckets.
+     */
+    public static final class Latency {
+        // Bucket i counts samples below 2^i microseconds
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            long us = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(us);
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            count.incrementAndGet();
+            total.addAndGet(us);
+            long m;
+            while ((m = max.get()) < us && !max.compareAndSet(m, us)) {
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Total time in microseconds.
+         */
+        public long getTotal() {
+            return total.get();
+        }
+
+        /**
+         * Longest sample in microseconds.
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Upper bound of the percentile in microseconds, exact within a
+         * factor two.
+         *
+         * @param percent - e.g. 99
+         * @return the bound, 0 if there are no samples
+         */
+        public long getPercentile(double percent) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(n * percent / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min((1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * Volume and latency of the last create() of a service instance.
+     */
+    public static final class ServiceRecord {
+        private final int endpoints;
+        private final int classes;
+        private final int acls;
+        private final int templateApplies;
+        private final int duplicatesSkipped;
+        private final long redeploys;
+        private final long lastDuration;
+        private final long maxDuration;
+
+        ServiceRecord(int endpoints, int classes, int acls,
+                      int templateApplies, int duplicatesSkipped,
+                      long redeploys, long lastDuration, long maxDuration) {
+            this.endpoints = endpoints;
+            this.classes = classes;
+            this.acls = acls;
+            this.templateApplies = templateApplies;
+            this.duplicatesSkipped = duplicatesSkipped;
+            this.redeploys = redeploys;
+            this.lastDuration = lastDuration;
+            this.maxDuration = maxDuration;
+        }
+
+        public int getEndpoints() {
+            return endpoints;
+        }
+
+        public int getClasses() {
+            return classes;
+        }
+
+        /**
+         * Number of l3vpn-acl applications, after dedupe.
+         */
+        public int getAcls() {
+            return acls;
+        }
+
+        public int getTemplateApplies() {
+            return templateApplies;
+        }
+
+        public int getDuplicatesSkipped() {
+            return duplicatesSkipped;
+        }
+
+        /**
+         * Number of times create() has run for the service.
+         */
+        public long getRedeploys() {
+            return redeploys;
+        }
+
+        /**
+         * Duration of the last create() in microseconds.
+         */
+        public long getLastDuration() {
+            return lastDuration;
+        }
+
+        /**
+         * Longest create() in microseconds.
+         */
+        public long getMaxDuration() {
+            return maxDuration;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Latency> phases =
+        new ConcurrentHashMap<String, Latency>();
+    private final ConcurrentHashMap<String, Latency> templates =
+        new ConcurrentHashMap<String, Latency>();
+    private final ConcurrentHashMap<String, ServiceRecord> services =
+        new ConcurrentHashMap<String, ServiceRecord>();
+    private final AtomicLong duplicatesSkipped = new AtomicLong();
+
+    private MappingStats() {
+    }
+
+    public static MappingStats getInstance() {
+        return INSTANCE;
+    }
+
+    public Latency phase(String name) {
+        return latency(phases, name);
+    }
+
+    public Latency template(String name) {
+        return latency(templates, name);
+    }
+
+    private static Latency latency(ConcurrentHashMap<String, Latency> map,
+                                   String name) {
+        Latency l = map.get(name);
+        if (l == null) {
+            Latency prev = map.putIfAbsent(name, l = new Latency());
+            if (prev != null) {
+                l = prev;
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Record a create() of a service instance.
+     *
+     * @param service - service name
+     * @param nanos - duration of create()
+     */
+    public void service(String service, int endpoints, int classes,
+                        int acls, int templateApplies,
+                        int duplicatesSkipped, long nanos) {
+        long us = nanos / 1000;
+        ServiceRecord prev = services.get(service);
+        services.put(service, new ServiceRecord(
+            endpoints, classes, acls, templateApplies, duplicatesSkipped,
+            prev == null ? 1 : prev.getRedeploys() + 1, us,
+            prev == null ? us : Math.max(us, prev.getMaxDuration())));
+        this.duplicatesSkipped.addAndGet(duplicatesSkipped);
+        phase(TOTAL).record(nanos);
+    }
+
+    /**
+     * Forget a deleted service instance.
+     */
+    public void removeService(String service) {
+        services.remove(service);
+    }
+
+    /**
+     * Duplicate template applications skipped by all create() calls.
+     */
+    public long getDuplicatesSkipped() {
+        return duplicatesSkipped.get();
+    }
+
+    /**
+     * @return the phase or null if not recorded
+     */
+    public Latency getPhase(String name) {
+        return phases.get(name);
+    }
+
+    /**
+     * @return the template or null if not applied
+     */
+    public Latency getTemplate(String name) {
+        return templates.get(name);
+    }
+
+    /**
+     * @return the service or null if not created
+     */
+    public ServiceRecord getService(String name) {
+        return services.get(name);
+    }
+
+    public SortedMap<String, Latency> getPhases() {
+        return sorted(phases);
+    }
+
+    public SortedMap<String, Latency> getTemplates() {
+        return sorted(templates);
+    }
+
+    public SortedMap<String, ServiceRecord> getServices() {
+        return sorted(services);
+    }
+
+    private static <V> SortedMap<String, V> sorted(Map<String, V> map) {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, V>(map));
+    }
+
+    public void reset() {
+        phases.clear();
+        templates.clear();
+        services.clear();
+        duplicatesSkipped.set(0);
+        DeviceSyncCache.getInstance().resetCounters();
+    }
+}
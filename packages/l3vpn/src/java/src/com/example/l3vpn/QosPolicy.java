@@ -0,0 +1,170 @@
+package com.example.l3vpn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, compiled form of a /l3vpn:qos/qos-policy with its classes
+ * and their global match-traffic entries resolved.
+ *
+ * Only the CE/PE/interface/VLAN parameters are added per endpoint.
+ */
+public final class QosPolicy {
+
+    /**
+     * A class of the policy together with the referenced qos-class.
+     */
+    public static final class QosClass {
+        private final String name;
+        private final String dscp;
+        private final String priority;
+        private final String bandwidth;
+        private final String counter;
+        private final boolean prio;
+        private final List<String> matchEntries;
+        private final List<Map<String, String>> aclVariables;
+
+        public QosClass(String name, String dscp, String bandwidth,
+                        int counter, boolean prio,
+                        List<String> matchEntries,
+                        List<Map<String, String>> aclVariables) {
+            this.name = name;
+            this.dscp = dscp == null ? "" : dscp;
+            this.priority = "ef".equals(dscp) || "af31".equals(dscp) ?
+                "high" : "low";
+            this.bandwidth = bandwidth;
+            this.counter = String.valueOf(counter);
+            this.prio = prio;
+            this.matchEntries = Collections.unmodifiableList(
+                new ArrayList<String>(matchEntries));
+            List<Map<String, String>> acls =
+                new ArrayList<Map<String, String>>();
+            for (Map<String, String> acl : aclVariables) {
+                acls.add(Collections.unmodifiableMap(acl));
+            }
+            this.aclVariables = Collections.unmodifiableList(acls);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The dscp-value of the qos-class or "" if not set.
+         */
+        public String getDscp() {
+            return dscp;
+        }
+
+        /**
+         * "high" for ef and af31 traffic, otherwise "low".
+         */
+        public String getPriority() {
+            return priority;
+        }
+
+        public String getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * Position of the class in the policy.
+         */
+        public String getCounter() {
+            return counter;
+        }
+
+        /**
+         * True if the priority leaf is set for the class in the policy.
+         */
+        public boolean isPrio() {
+            return prio;
+        }
+
+        /**
+         * ACL names of the global match-traffic entries, GLOBAL-name.
+         */
+        public List<String> getMatchEntries() {
+            return matchEntries;
+        }
+
+        /**
+         * Unquoted l3vpn-acl template variables, one set per global
+         * match-traffic entry. CE is not included.
+         */
+        public List<Map<String, String>> getAclVariables() {
+            return aclVariables;
+        }
+    }
+
+    private final String name;
+    private final List<QosClass> classes;
+
+    public QosPolicy(String name, List<QosClass> classes) {
+        this.name = name;
+        this.classes = Collections.unmodifiableList(
+            new ArrayList<QosClass>(classes));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<QosClass> getClasses() {
+        return classes;
+    }
+
+    /**
+     * True if any class of the policy refers to the qos-class.
+     */
+    public boolean usesClass(String qosClass) {
+        for (QosClass c : classes) {
+            if (c.getName().equals(qosClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Unquoted l3vpn-acl template variables for a match-traffic or
+     * custom-qos-match entry. CE is not included.
+     */
+    public static Map<String, String> aclVariables(String namePrefix,
+                                                   String name,
+                                                   String protocol,
+                                                   String sourceIp,
+                                                   String destinationIp,
+                                                   String portStart,
+                                                   String portEnd) {
+        Map<String, String> aclVar = new LinkedHashMap<String, String>();
+
+        aclVar.put("ACL_NAME", namePrefix + "-" + name);
+        aclVar.put("PROTOCOL", protocol);
+        aclVar.put("SOURCE_IP", sourceIp);
+        if ("any".equals(sourceIp)) {
+            aclVar.put("SOURCE_IP_ADR","any");
+            aclVar.put("SOURCE_WMASK"," ");
+        }
+        else {
+            Ipv4Prefix p = Ipv4Prefix.parse(sourceIp);
+            aclVar.put("SOURCE_IP_ADR", p.addressString());
+            aclVar.put("SOURCE_WMASK", p.wildcardMaskString());
+        }
+        if ("any".equals(destinationIp)) {
+            aclVar.put("DEST_IP_ADR","any");
+            aclVar.put("DEST_WMASK"," ");
+        }
+        else {
+            Ipv4Prefix p = Ipv4Prefix.parse(destinationIp);
+            aclVar.put("DEST_IP_ADR", p.addressString());
+            aclVar.put("DEST_WMASK", p.wildcardMaskString());
+        }
+        aclVar.put("PORT_START", portStart);
+        aclVar.put("PORT_END", portEnd);
+        return aclVar;
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.l3vpn;
+
+import com.example.l3vpn.namespaces.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tailf.conf.ConfException;
+import com.tailf.conf.ConfObject;
+import com.tailf.conf.ConfTag;
+import com.tailf.conf.DiffIterateOperFlag;
+import com.tailf.conf.DiffIterateResultFlag;
+import com.tailf.maapi.MaapiDiffIterate;
+import com.tailf.navu.NavuContainer;
+import com.tailf.navu.NavuContext;
+import com.tailf.navu.NavuException;
+import com.tailf.navu.NavuLeaf;
+
+/**
+ * Compiled QoS policies keyed on policy name, shared by all service
+ * instances. Entries are dropped by the CacheSubscriber when the policy
+ * or one of the qos-classes it refers to is changed.
+ *
+ * Only committed policies are cached. A transaction with changes of its
+ * own in /l3vpn:qos, e.g. a dry-run, compiles the policy from the
+ * transaction and leaves the cache alone, and a policy compiled while
+ * the cache was invalidated is not cached.
+ */
+public final class QosPolicyCache {
+
+    private static final QosPolicyCache INSTANCE = new QosPolicyCache();
+
+    private final ConcurrentHashMap<String, QosPolicy> policies =
+        new ConcurrentHashMap<String, QosPolicy>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean disabled = false;
+
+    private QosPolicyCache() {
+    }
+
+    public static QosPolicyCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the compiled policy referred to by a qos-policy leafref,
+     * compiling it if it is not cached or changed in the transaction.
+     *
+     * @param policyRef - leaf referring to /l3vpn:qos/qos-policy/name
+     * @param qosChanged - whether the transaction has changes of its own
+     *                     in /l3vpn:qos, see hasQosChanges()
+     * @param fill - whether to cache a policy compiled on a miss
+     * @return the compiled policy
+     * @throws NavuException
+     */
+    public QosPolicy get(NavuLeaf policyRef, boolean qosChanged,
+                         boolean fill)
+        throws NavuException {
+        if (disabled || qosChanged) {
+            return compile(policyRef);
+        }
+        String name = policyRef.valueAsString();
+        QosPolicy policy = policies.get(name);
+        if (policy == null && !fill) {
+            policy = compile(policyRef);
+        } else if (policy == null) {
+            long gen = generation.get();
+            policy = compile(policyRef);
+            // Do not cache a policy read while it was invalidated
+            synchronized (this) {
+                if (gen == generation.get()) {
+                    policies.put(name, policy);
+                }
+            }
+        }
+        return policy;
+    }
+
+    public synchronized void invalidatePolicies(Collection<String> names) {
+        generation.incrementAndGet();
+        for (String name : names) {
+            policies.remove(name);
+        }
+    }
+
+    /**
+     * Drop all policies using any of the qos-classes.
+     */
+    public synchronized void invalidateClasses(Collection<String> classes) {
+        generation.incrementAndGet();
+        for (Iterator<QosPolicy> it = policies.values().iterator();
+             it.hasNext();) {
+            QosPolicy policy = it.next();
+            for (String c : classes) {
+                if (policy.usesClass(c)) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation.incrementAndGet();
+        policies.clear();
+    }
+
+    /**
+     * Stop caching, when the cache can no longer be invalidated.
+     * Policies are compiled for every service until the package is
+     * reloaded.
+     */
+    public synchronized void disable() {
+        disabled = true;
+        invalidateAll();
+    }
+
+    private static QosPolicy compile(NavuLeaf policyRef)
+        throws NavuException {
+        return compile((NavuContainer) policyRef.deref().get(0).getParent());
+    }
+
+    /**
+     * Whether the transaction has changes of its own in /l3vpn:qos.
+     * Only the top level of the diff is visited outside of it, still it
+     * is a walk of the transaction, so call it once per create.
+     */
+    public static boolean hasQosChanges(NavuContext ctx)
+        throws ConfException, java.io.IOException {
+        final boolean[] found = new boolean[1];
+        MaapiDiffIterate iter = new MaapiDiffIterate() {
+                public DiffIterateResultFlag iterate(ConfObject[] kp,
+                                                     DiffIterateOperFlag op,
+                                                     ConfObject oldValue,
+                                                     ConfObject newValue,
+                                                     Object initstate) {
+                    // The keypath is reversed, the top node is last
+                    ConfObject top = kp[kp.length - 1];
+                    if (top instanceof ConfTag &&
+                        ((ConfTag) top).getTagHash() == l3vpn._qos) {
+                        found[0] = true;
+                        return DiffIterateResultFlag.ITER_STOP;
+                    }
+                    return DiffIterateResultFlag.ITER_CONTINUE;
+                }
+            };
+        ctx.getMaapi().diffIterate(ctx.getMaapiHandle(), iter);
+        return found[0];
+    }
+
+    static QosPolicy compile(NavuContainer qosPolicy)
+        throws NavuException {
+        List<QosPolicy.QosClass> classes =
+            new ArrayList<QosPolicy.QosClass>();
+        int classCounter = 0;
+        for (NavuContainer c : qosPolicy.list("class").elements()) {
+            NavuContainer cl = (NavuContainer)
+                c.leaf("qos-class").deref().get(0).getParent();
+
+            String dscp = null;
+            if (cl.leaf("dscp-value").exists()) {
+                dscp = cl.leaf("dscp-value").valueAsString();
+            }
+
+            List<String> matchEntries = new ArrayList<String>();
+            List<Map<String, String>> aclVars =
+                new ArrayList<Map<String, String>>();
+            for (NavuContainer match : cl.list("match-traffic").
+                     elements()) {
+                matchEntries.add("GLOBAL-" + match.leaf("name").
+                                 valueAsString());
+                aclVars.add(QosPolicy.aclVariables(
+                    "GLOBAL",
+                    match.leaf("name").valueAsString(),
+                    match.leaf("protocol").valueAsString(),
+                    match.leaf("source-ip").valueAsString(),
+                    match.leaf("destination-ip").valueAsString(),
+                    match.leaf("port-start").valueAsString(),
+                    match.leaf("port-end").valueAsString()));
+            }
+
+            classes.add(new QosPolicy.QosClass(
+                c.leaf("qos-class").valueAsString(),
+                dscp,
+                c.leaf("bandwidth-percentage").valueAsString(),
+                classCounter,
+                c.leaf("priority").exists(),
+                matchEntries,
+                aclVars));
+            classCounter++;
+        }
+        return new QosPolicy(qosPolicy.leaf("name").valueAsString(),
+                             classes);
+    }
+}
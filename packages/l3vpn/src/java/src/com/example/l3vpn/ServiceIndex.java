@@ -0,0 +1,290 @@
+package com.example.l3vpn;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfException;
+
+/**
+ * Reverse index from the topology connections, CE devices, qos-policies
+ * and qos-classes to the l3vpn service instances using them.
+ *
+ * The index only holds committed services. The CacheSubscriber builds
+ * it from CDB at start, re-reads the services changed in /l3vpn:vpn or
+ * impacted by a topology or QoS change, and uses it to re-deploy only
+ * the impacted services.
+ */
+public final class ServiceIndex {
+
+    private static final String VPN = "/l3vpn:vpn/l3vpn";
+    private static final String QOS = "/l3vpn:qos";
+
+    private static final ServiceIndex INSTANCE = new ServiceIndex();
+
+    /**
+     * What a service instance refers to.
+     */
+    static final class Refs {
+        final Set<String> connections;
+        final Set<String> devices;
+        final String policy;
+        final Set<String> classes;
+
+        Refs(Set<String> connections, Set<String> devices, String policy,
+             Set<String> classes) {
+            this.connections = connections;
+            this.devices = devices;
+            this.policy = policy;
+            this.classes = classes;
+        }
+    }
+
+    // All guarded by this
+    private final Map<String, Refs> services = new HashMap<String, Refs>();
+    private final Map<String, Set<String>> byConnection =
+        new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> byDevice =
+        new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> byPolicy =
+        new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> byClass =
+        new HashMap<String, Set<String>>();
+    private boolean built = false;
+    private boolean disabled = false;
+
+    private ServiceIndex() {
+    }
+
+    public static ServiceIndex getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void remove(String service) {
+        Refs old = services.remove(service);
+        if (old == null) {
+            return;
+        }
+        unlink(byConnection, old.connections, service);
+        unlink(byDevice, old.devices, service);
+        if (old.policy != null) {
+            unlink(byPolicy, Collections.singleton(old.policy), service);
+        }
+        unlink(byClass, old.classes, service);
+    }
+
+    /**
+     * The services referring to any of the given objects.
+     *
+     * @param connections - /l3vpn:topology connection names
+     * @param devices - CE devices
+     * @param policies - qos-policy names
+     * @param classes - qos-class names
+     * @return the service names, sorted
+     */
+    public synchronized Set<String> impacted(Collection<String> connections,
+                                             Collection<String> devices,
+                                             Collection<String> policies,
+                                             Collection<String> classes) {
+        Set<String> result = new TreeSet<String>();
+        collect(byConnection, connections, result);
+        collect(byDevice, devices, result);
+        collect(byPolicy, policies, result);
+        collect(byClass, classes, result);
+        return result;
+    }
+
+    /**
+     * All indexed services, sorted.
+     */
+    public synchronized Set<String> all() {
+        return new TreeSet<String>(services.keySet());
+    }
+
+    public synchronized boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Drop the index for good, when it can no longer be kept up to date.
+     * It is not built again until the package is reloaded.
+     */
+    public synchronized void disable() {
+        disabled = true;
+        invalidate();
+    }
+
+    public synchronized void invalidate() {
+        built = false;
+        services.clear();
+        byConnection.clear();
+        byDevice.clear();
+        byPolicy.clear();
+        byClass.clear();
+    }
+
+    /**
+     * Index all service instances in CDB, replacing what was indexed.
+     * The CE devices are resolved to connections with the TopologyIndex,
+     * which has to be built first.
+     */
+    public void build(CdbSession session)
+        throws ConfException, IOException {
+        Map<String, Set<String>> policyClasses =
+            new HashMap<String, Set<String>>();
+        Map<String, Refs> refs = new HashMap<String, Refs>();
+        int n = session.getNumberOfInstances(VPN);
+        for (int i = 0; i < n; i++) {
+            String name =
+                session.getElem(VPN + "[" + i + "]/name").toString();
+            refs.put(name, read(session, name, policyClasses));
+        }
+
+        synchronized (this) {
+            if (disabled) {
+                return;
+            }
+            invalidate();
+            for (Map.Entry<String, Refs> e : refs.entrySet()) {
+                put(e.getKey(), e.getValue());
+            }
+            built = true;
+        }
+    }
+
+    /**
+     * Re-read the given services from CDB. Services that no longer exist
+     * are dropped.
+     *
+     * @return the services that no longer exist
+     */
+    public Set<String> refresh(CdbSession session, Collection<String> names)
+        throws ConfException, IOException {
+        Map<String, Set<String>> policyClasses =
+            new HashMap<String, Set<String>>();
+        Set<String> deleted = new HashSet<String>();
+        for (String name : names) {
+            if (session.exists(VPN + "{" + name + "}")) {
+                put(name, read(session, name, policyClasses));
+            } else {
+                remove(name);
+                deleted.add(name);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * What the service refers to, its CE devices resolved to topology
+     * connections the way the mapping does.
+     *
+     * @param policyClasses - classes of the policies read so far
+     */
+    private static Refs read(CdbSession session, String name,
+                             Map<String, Set<String>> policyClasses)
+        throws ConfException, IOException {
+        String vpn = VPN + "{" + name + "}";
+        TopologyIndex topology = TopologyIndex.getInstance();
+
+        Set<String> connections = new HashSet<String>();
+        Set<String> devices = new HashSet<String>();
+        int m = session.getNumberOfInstances(vpn + "/endpoint");
+        for (int j = 0; j < m; j++) {
+            String device = session.getElem(
+                vpn + "/endpoint[" + j + "]/ce-device").toString();
+            devices.add(device);
+            TopologyIndex.Link link = topology.get(device);
+            if (link != null) {
+                connections.add(link.getConnection());
+            }
+        }
+
+        String policy = null;
+        Set<String> classes = new HashSet<String>();
+        if (session.exists(vpn + "/qos/qos-policy")) {
+            policy = session.getElem(vpn + "/qos/qos-policy").toString();
+            Set<String> pc = policyClasses.get(policy);
+            if (pc == null) {
+                pc = readPolicyClasses(session, policy);
+                policyClasses.put(policy, pc);
+            }
+            classes.addAll(pc);
+            String match = vpn + "/qos/custom-qos-match";
+            m = session.getNumberOfInstances(match);
+            for (int j = 0; j < m; j++) {
+                classes.add(session.getElem(
+                    match + "[" + j + "]/qos-class").toString());
+            }
+        }
+        return new Refs(connections, devices, policy, classes);
+    }
+
+    private static Set<String> readPolicyClasses(CdbSession session,
+                                                 String policy)
+        throws ConfException, IOException {
+        Set<String> classes = new HashSet<String>();
+        String path = QOS + "/qos-policy{" + policy + "}/class";
+        int n = session.getNumberOfInstances(path);
+        for (int i = 0; i < n; i++) {
+            classes.add(session.getElem(
+                path + "[" + i + "]/qos-class").toString());
+        }
+        return classes;
+    }
+
+    private synchronized void put(String service, Refs refs) {
+        remove(service);
+        services.put(service, refs);
+        link(byConnection, refs.connections, service);
+        link(byDevice, refs.devices, service);
+        if (refs.policy != null) {
+            link(byPolicy, Collections.singleton(refs.policy), service);
+        }
+        link(byClass, refs.classes, service);
+    }
+
+    private static void link(Map<String, Set<String>> index,
+                             Collection<String> keys, String service) {
+        for (String key : keys) {
+            Set<String> s = index.get(key);
+            if (s == null) {
+                s = new HashSet<String>();
+                index.put(key, s);
+            }
+            s.add(service);
+        }
+    }
+
+    private static void unlink(Map<String, Set<String>> index,
+                               Collection<String> keys, String service) {
+        for (String key : keys) {
+            Set<String> s = index.get(key);
+            if (s != null) {
+                s.remove(service);
+                if (s.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+    }
+
+    private static void collect(Map<String, Set<String>> index,
+                                Collection<String> keys,
+                                Set<String> result) {
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            Set<String> s = index.get(key);
+            if (s != null) {
+                result.addAll(s);
+            }
+        }
+    }
+}
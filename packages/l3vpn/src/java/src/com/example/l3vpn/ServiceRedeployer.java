@@ -0,0 +1,182 @@
+package com.example.l3vpn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.conf.ConfXMLParam;
+import com.tailf.maapi.Maapi;
+import com.tailf.maapi.MaapiUserSessionFlag;
+import com.tailf.ncs.NcsMain;
+
+/**
+ * Re-deploys l3vpn service instances in the background, outside of the
+ * CDB subscriber that found them impacted.
+ *
+ * A service queued several times before it is re-deployed is only
+ * re-deployed once. At most WORKERS re-deploys run at the same time,
+ * each worker re-deploys queued services over one MAAPI connection
+ * until the queue is empty. The re-deploys are done as the configured
+ * /l3vpn:vpn/redeploy-user. If NCS can not be reached the queue is kept
+ * and tried again after RETRY_DELAY seconds.
+ */
+public final class ServiceRedeployer {
+
+    private static final Logger LOGGER =
+        Logger.getLogger(ServiceRedeployer.class);
+
+    static final int WORKERS = 4;
+    static final int RETRY_DELAY = 30;
+
+    private final Set<String> queue = new LinkedHashSet<String>();
+    private final ScheduledExecutorService pool;
+    private int running = 0;
+    private String user;
+
+    public ServiceRedeployer() {
+        pool = Executors.newScheduledThreadPool(WORKERS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "l3vpn-redeploy-" +
+                                          count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * Queue services for re-deploy.
+     *
+     * @param services - the services to re-deploy
+     * @param user - the user to re-deploy them as
+     */
+    public synchronized void submit(Collection<String> services,
+                                    String user) {
+        this.user = user;
+        submit(services);
+    }
+
+    private synchronized void submit(Collection<String> services) {
+        queue.addAll(services);
+        while (running < WORKERS && running < queue.size()) {
+            running++;
+            pool.execute(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private synchronized String poll() {
+        Iterator<String> it = queue.iterator();
+        if (!it.hasNext()) {
+            running--;
+            return null;
+        }
+        String service = it.next();
+        it.remove();
+        return service;
+    }
+
+    /**
+     * Give up the worker and try the queue again later, rather than
+     * spin while NCS can not be reached.
+     */
+    private synchronized void retry() {
+        running--;
+        try {
+            pool.schedule(new Runnable() {
+                    public void run() {
+                        submit(Collections.<String>emptySet());
+                    }
+                }, RETRY_DELAY, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down
+        }
+    }
+
+    private synchronized void requeue(String service) {
+        queue.add(service);
+    }
+
+    private synchronized String getUser() {
+        return user;
+    }
+
+    private void drain() {
+        Maapi maapi = null;
+        Socket socket = null;
+        String asUser = getUser();
+        try {
+            socket = new Socket(NcsMain.getInstance().getNcsHost(),
+                                NcsMain.getInstance().getNcsPort());
+            maapi = new Maapi(socket);
+            maapi.startUserSession(asUser, InetAddress.getLocalHost(),
+                                   "system", new String[] {},
+                                   MaapiUserSessionFlag.PROTO_TCP);
+        } catch (Exception e) {
+            LOGGER.error("l3vpn re-deploy: not able to connect as " + asUser +
+                         ", retrying in " + RETRY_DELAY + " s", e);
+            closeQuietly(socket);
+            retry();
+            return;
+        }
+        try {
+            String service;
+            while ((service = poll()) != null) {
+                long start = System.nanoTime();
+                try {
+                    maapi.requestAction(new ConfXMLParam[] {},
+                                        "/l3vpn:vpn/l3vpn{%s}/re-deploy",
+                                        service);
+                    LOGGER.info(String.format(
+                        "l3vpn %1$s re-deployed in %2$d ms", service,
+                        (System.nanoTime() - start) / 1000000));
+                } catch (IOException e) {
+                    LOGGER.error("l3vpn re-deploy: connection lost, " +
+                                 "retrying in " + RETRY_DELAY + " s", e);
+                    requeue(service);
+                    retry();
+                    return;
+                } catch (Exception e) {
+                    LOGGER.error("l3vpn " + service + " re-deploy failed", e);
+                }
+            }
+        } finally {
+            try {
+                maapi.endUserSession();
+            } catch (Exception ignore) {
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+}
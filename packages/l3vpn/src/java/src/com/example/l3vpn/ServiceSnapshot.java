@@ -0,0 +1,297 @@
+package com.example.l3vpn;
+
+import com.example.l3vpn.namespaces.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.tailf.conf.*;
+import com.tailf.dp.DpCallbackException;
+import com.tailf.navu.*;
+
+/**
+ * Immutable copy of an l3vpn service instance together with the topology
+ * connections and QoS policy it refers to.
+ *
+ * It is read once at the start of create() and the service mapping is
+ * done from it only, which also makes the mapping usable without a
+ * running NCS.
+ */
+public final class ServiceSnapshot {
+
+    private static final String[] ENDPOINT_LEAVES = {
+        "ce-device", "ce-interface", "ip-network", "bandwidth", "as-number"
+    };
+
+    /**
+     * An endpoint with its resolved topology connection.
+     */
+    public static final class Endpoint {
+        private final String id;
+        private final String ceDevice;
+        private final String ceInterface;
+        private final Ipv4Prefix ipNetwork;
+        private final String bandwidth;
+        private final String asNumber;
+        private final TopologyIndex.Link link;
+
+        public Endpoint(String id, String ceDevice, String ceInterface,
+                        Ipv4Prefix ipNetwork, String bandwidth,
+                        String asNumber, TopologyIndex.Link link) {
+            this.id = id;
+            this.ceDevice = ceDevice;
+            this.ceInterface = ceInterface;
+            this.ipNetwork = ipNetwork;
+            this.bandwidth = bandwidth;
+            this.asNumber = asNumber;
+            this.link = link;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getCeDevice() {
+            return ceDevice;
+        }
+
+        public String getCeInterface() {
+            return ceInterface;
+        }
+
+        public Ipv4Prefix getIpNetwork() {
+            return ipNetwork;
+        }
+
+        public String getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * The as-number or null if not set.
+         */
+        public String getAsNumber() {
+            return asNumber;
+        }
+
+        /**
+         * The topology connection of the CE device.
+         */
+        public TopologyIndex.Link getLink() {
+            return link;
+        }
+    }
+
+    /**
+     * A service specific custom-qos-match entry.
+     */
+    public static final class CustomMatch {
+        private final String name;
+        private final String qosClass;
+        private final String protocol;
+        private final String sourceIp;
+        private final String destinationIp;
+        private final String portStart;
+        private final String portEnd;
+
+        public CustomMatch(String name, String qosClass, String protocol,
+                           String sourceIp, String destinationIp,
+                           String portStart, String portEnd) {
+            this.name = name;
+            this.qosClass = qosClass;
+            this.protocol = protocol;
+            this.sourceIp = sourceIp;
+            this.destinationIp = destinationIp;
+            this.portStart = portStart;
+            this.portEnd = portEnd;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getQosClass() {
+            return qosClass;
+        }
+
+        /**
+         * Unquoted l3vpn-acl template variables, CE not included.
+         */
+        public Map<String, String> getAclVariables(String namePrefix) {
+            return QosPolicy.aclVariables(namePrefix, name, protocol,
+                                          sourceIp, destinationIp,
+                                          portStart, portEnd);
+        }
+    }
+
+    private final String name;
+    private final String routeDistinguisher;
+    private final QosPolicy qosPolicy;
+    private final List<Endpoint> endpoints;
+    private final List<CustomMatch> customMatches;
+
+    public ServiceSnapshot(String name, String routeDistinguisher,
+                           QosPolicy qosPolicy, List<Endpoint> endpoints,
+                           List<CustomMatch> customMatches) {
+        this.name = name;
+        this.routeDistinguisher = routeDistinguisher;
+        this.qosPolicy = qosPolicy;
+        this.endpoints = Collections.unmodifiableList(
+            new ArrayList<Endpoint>(endpoints));
+        this.customMatches = Collections.unmodifiableList(
+            new ArrayList<CustomMatch>(customMatches));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getRouteDistinguisher() {
+        return routeDistinguisher;
+    }
+
+    /**
+     * The compiled qos-policy or null if the service has none.
+     */
+    public QosPolicy getQosPolicy() {
+        return qosPolicy;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public List<CustomMatch> getCustomMatches() {
+        return customMatches;
+    }
+
+    /**
+     * All CE and PE devices of the service, sorted.
+     */
+    public Set<String> getDevices() {
+        Set<String> devices = new TreeSet<String>();
+        for (Endpoint e : endpoints) {
+            devices.add(e.getCeDevice());
+            devices.add(e.getLink().getConnectedEndpoint().getDevice());
+        }
+        return devices;
+    }
+
+    /**
+     * Read the service instance.
+     *
+     * @param service - the l3vpn list entry
+     * @param topology - the /l3vpn:topology container
+     * @return the snapshot
+     * @throws DpCallbackException if a CE is not in the topology
+     * @throws ConfException
+     * @throws IOException
+     */
+    public static ServiceSnapshot read(NavuContainer service,
+                                       NavuContainer topology)
+        throws ConfException, IOException {
+        return read(service, topology, true);
+    }
+
+    /**
+     * Read the service instance, as read(service, topology).
+     *
+     * @param mapping - false to read without recording the mapping
+     * statistics or filling the QoS policy cache, e.g. for a drift check
+     */
+    public static ServiceSnapshot read(NavuContainer service,
+                                       NavuContainer topology,
+                                       boolean mapping)
+        throws ConfException, IOException {
+        String name = service.leaf("name").valueAsString();
+        String rd = service.leaf("route-distinguisher").valueAsString();
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        long lookupTime = 0;
+        for (NavuContainer endpoint : service.list("endpoint").elements()) {
+            // One round trip for all the leaves of the endpoint
+            Map<String, String> v = readValues(endpoint, ENDPOINT_LEAVES);
+            String ceName = v.get("ce-device");
+            long start = System.nanoTime();
+            TopologyIndex.Link link =
+                TopologyIndex.getInstance().lookup(topology, ceName);
+            lookupTime += System.nanoTime() - start;
+            if (link == null) {
+                throw new DpCallbackException(String.format(
+                    "CE device %1$s is not part of any " +
+                    "/l3vpn:topology connection", ceName));
+            }
+            endpoints.add(new Endpoint(
+                endpoint.getKey().elementAt(0).toString(),
+                ceName,
+                v.get("ce-interface"),
+                Ipv4Prefix.parse(v.get("ip-network")),
+                v.get("bandwidth"),
+                v.get("as-number"),
+                link));
+        }
+        MappingStats stats = MappingStats.getInstance();
+        if (mapping) {
+            stats.phase(MappingStats.TOPOLOGY_LOOKUP).record(lookupTime);
+        }
+
+        NavuContainer qos = service.container("qos");
+        QosPolicy qosPolicy = null;
+        List<CustomMatch> customMatches = new ArrayList<CustomMatch>();
+        if (qos.leaf("qos-policy").exists()) {
+            long start = System.nanoTime();
+            boolean qosChanged =
+                QosPolicyCache.hasQosChanges(service.context());
+            qosPolicy = QosPolicyCache.getInstance().
+                get(qos.leaf("qos-policy"), qosChanged, mapping);
+            if (mapping) {
+                stats.phase(MappingStats.QOS_POLICY).
+                    record(System.nanoTime() - start);
+            }
+            // Read through NAVU, the union and enumeration leaves need
+            // the schema to be rendered as strings.
+            for (NavuContainer match :
+                     qos.list("custom-qos-match").elements()) {
+                customMatches.add(new CustomMatch(
+                    match.leaf("name").valueAsString(),
+                    match.leaf("qos-class").valueAsString(),
+                    match.leaf("protocol").valueAsString(),
+                    match.leaf("source-ip").valueAsString(),
+                    match.leaf("destination-ip").valueAsString(),
+                    match.leaf("port-start").valueAsString(),
+                    match.leaf("port-end").valueAsString()));
+            }
+        }
+        return new ServiceSnapshot(name, rd, qosPolicy, endpoints,
+                                   customMatches);
+    }
+
+    /**
+     * Read several leaves of a node with a single MAAPI request.
+     * Leaves that are not set are left out of the result.
+     */
+    private static Map<String, String> readValues(NavuContainer node,
+                                                  String[] leaves)
+        throws ConfException, IOException {
+        ConfXMLParam[] params = new ConfXMLParam[leaves.length];
+        for (int i = 0; i < leaves.length; i++) {
+            params[i] = new ConfXMLParamLeaf(l3vpn.prefix, leaves[i]);
+        }
+        NavuContext ctx = node.context();
+        ConfXMLParam[] values = ctx.getMaapi().
+            getValues(ctx.getMaapiHandle(), params, node.getKeyPath());
+        Map<String, String> result = new HashMap<String, String>();
+        for (ConfXMLParam value : values) {
+            if (value instanceof ConfXMLParamValue) {
+                result.put(value.getTag(), value.getValue().toString());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.l3vpn;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.tailf.conf.*;
+import com.tailf.dp.*;
+import com.tailf.dp.annotations.*;
+import com.tailf.dp.proto.*;
+
+/**
+ * Data provider for the operational /l3vpn:vpn/stats container and its
+ * reset action, served from MappingStats.
+ */
+public class StatsDataProvider {
+
+    private static final String CALLPOINT = "l3vpn-stats";
+
+    @TransCallback(callType=TransCBType.INIT)
+    public void init(DpTrans trans) throws DpCallbackException {
+    }
+
+    @TransCallback(callType=TransCBType.FINISH)
+    public void finish(DpTrans trans) throws DpCallbackException {
+    }
+
+    @DataCallback(callPoint=CALLPOINT, callType=DataCBType.ITERATOR)
+    public Iterator<? extends Object> iterator(DpTrans trans,
+                                               ConfObject[] kp)
+        throws DpCallbackException {
+        return entries(tag(kp[0])).keySet().iterator();
+    }
+
+    @DataCallback(callPoint=CALLPOINT, callType=DataCBType.GET_KEY)
+    public ConfKey getKey(DpTrans trans, ConfObject[] kp, Object obj)
+        throws DpCallbackException {
+        return new ConfKey(new ConfBuf((String) obj));
+    }
+
+    @DataCallback(callPoint=CALLPOINT, callType=DataCBType.NUM_INSTANCES)
+    public int numInstances(DpTrans trans, ConfObject[] kp)
+        throws DpCallbackException {
+        return entries(tag(kp[0])).size();
+    }
+
+    @DataCallback(callPoint=CALLPOINT, callType=DataCBType.GET_ELEM)
+    public ConfValue getElem(DpTrans trans, ConfObject[] kp)
+        throws DpCallbackException {
+        MappingStats stats = MappingStats.getInstance();
+        String leaf = tag(kp[0]);
+
+        // Leaves directly in the stats container
+        if (!(kp[1] instanceof ConfKey)) {
+            if ("device-cache-hits".equals(leaf)) {
+                return new ConfUInt64(
+                    DeviceSyncCache.getInstance().getHits());
+            }
+            if ("device-cache-misses".equals(leaf)) {
+                return new ConfUInt64(
+                    DeviceSyncCache.getInstance().getMisses());
+            }
+            if ("duplicates-skipped".equals(leaf)) {
+                return new ConfUInt64(stats.getDuplicatesSkipped());
+            }
+            return null;
+        }
+
+        String list = tag(kp[2]);
+        String name = ((ConfKey) kp[1]).elementAt(0).toString();
+        if ("service".equals(list)) {
+            MappingStats.ServiceRecord s = stats.getService(name);
+            if (s == null) {
+                return null;
+            }
+            if ("name".equals(leaf)) {
+                return new ConfBuf(name);
+            }
+            if ("endpoints".equals(leaf)) {
+                return new ConfUInt32(s.getEndpoints());
+            }
+            if ("classes".equals(leaf)) {
+                return new ConfUInt32(s.getClasses());
+            }
+            if ("acls".equals(leaf)) {
+                return new ConfUInt32(s.getAcls());
+            }
+            if ("template-applies".equals(leaf)) {
+                return new ConfUInt32(s.getTemplateApplies());
+            }
+            if ("duplicates-skipped".equals(leaf)) {
+                return new ConfUInt32(s.getDuplicatesSkipped());
+            }
+            if ("redeploys".equals(leaf)) {
+                return new ConfUInt64(s.getRedeploys());
+            }
+            if ("last-time".equals(leaf)) {
+                return new ConfUInt64(s.getLastDuration());
+            }
+            if ("max-time".equals(leaf)) {
+                return new ConfUInt64(s.getMaxDuration());
+            }
+            return null;
+        }
+
+        MappingStats.Latency l = "phase".equals(list) ?
+            stats.getPhase(name) : stats.getTemplate(name);
+        if (l == null) {
+            return null;
+        }
+        if ("name".equals(leaf)) {
+            return new ConfBuf(name);
+        }
+        if ("count".equals(leaf)) {
+            return new ConfUInt64(l.getCount());
+        }
+        if ("total-time".equals(leaf)) {
+            return new ConfUInt64(l.getTotal());
+        }
+        if ("max-time".equals(leaf)) {
+            return new ConfUInt64(l.getMax());
+        }
+        if ("p50".equals(leaf)) {
+            return new ConfUInt64(l.getPercentile(50));
+        }
+        if ("p90".equals(leaf)) {
+            return new ConfUInt64(l.getPercentile(90));
+        }
+        if ("p99".equals(leaf)) {
+            return new ConfUInt64(l.getPercentile(99));
+        }
+        return null;
+    }
+
+    private static String tag(ConfObject o) {
+        return ((ConfTag) o).getTag();
+    }
+
+    private static Map<String, ?> entries(String list) {
+        MappingStats stats = MappingStats.getInstance();
+        if ("phase".equals(list)) {
+            return stats.getPhases();
+        }
+        if ("template".equals(list)) {
+            return stats.getTemplates();
+        }
+        if ("service".equals(list)) {
+            return stats.getServices();
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Init method for the reset action
+     */
+    @ActionCallback(callPoint="l3vpn-stats-reset",
+                    callType=ActionCBType.INIT)
+    public void init(DpActionTrans trans) throws DpCallbackException {
+    }
+
+    /**
+     * Clear all counters
+     */
+    @ActionCallback(callPoint="l3vpn-stats-reset",
+                    callType=ActionCBType.ACTION)
+    public ConfXMLParam[] reset(DpActionTrans trans, ConfTag name,
+                                ConfObject[] kp, ConfXMLParam[] params)
+        throws DpCallbackException {
+        MappingStats.getInstance().reset();
+        return new ConfXMLParam[0];
+    }
+}
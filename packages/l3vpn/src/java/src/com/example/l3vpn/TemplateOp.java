@@ -0,0 +1,109 @@
+package com.example.l3vpn;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.tailf.ncs.template.TemplateVariables;
+
+/**
+ * One template application planned by the MappingPlanner: the name of a
+ * feature template and the unquoted variables to apply it with.
+ *
+ * The variables are held as arrays sorted on variable name, so that
+ * large plans stay small and duplicates are cheap to find.
+ */
+public final class TemplateOp {
+
+    private final String template;
+    private final String[] names;
+    private final String[] values;
+    private final int hash;
+
+    public TemplateOp(String template, Map<String, String> variables) {
+        this(template, sortedNames(variables), variables);
+    }
+
+    /**
+     * @param names - variable names, sorted, may be shared between ops
+     * @param variables - the values, names missing in it are null
+     */
+    TemplateOp(String template, String[] names,
+               Map<String, String> variables) {
+        this(template, names, valuesOf(names, variables));
+    }
+
+    /**
+     * @param names - variable names, sorted, may be shared between ops
+     * @param values - the values in names order, owned by the op
+     */
+    TemplateOp(String template, String[] names, String[] values) {
+        this.template = template;
+        this.names = names;
+        this.values = values;
+        this.hash = (template.hashCode() * 31 + Arrays.hashCode(names)) * 31 +
+            Arrays.hashCode(values);
+    }
+
+    private static String[] sortedNames(Map<String, String> variables) {
+        String[] names = variables.keySet().toArray(
+            new String[variables.size()]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static String[] valuesOf(String[] names,
+                                     Map<String, String> variables) {
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = variables.get(names[i]);
+        }
+        return values;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public Map<String, String> getVariables() {
+        Map<String, String> vars = new LinkedHashMap<String, String>();
+        for (int i = 0; i < names.length; i++) {
+            vars.put(names[i], values[i]);
+        }
+        return Collections.unmodifiableMap(vars);
+    }
+
+    public TemplateVariables toTemplateVariables() {
+        TemplateVariables tv = new TemplateVariables();
+        for (int i = 0; i < names.length; i++) {
+            tv.putQuoted(names[i], values[i]);
+        }
+        return tv;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TemplateOp)) {
+            return false;
+        }
+        TemplateOp op = (TemplateOp) o;
+        return hash == op.hash &&
+            template.equals(op.template) &&
+            Arrays.equals(names, op.names) &&
+            Arrays.equals(values, op.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return template + getVariables();
+    }
+}
@@ -0,0 +1,381 @@
+package com.example.l3vpn;
+
+import com.example.l3vpn.namespaces.*;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfException;
+import com.tailf.conf.ConfXMLParam;
+import com.tailf.conf.ConfXMLParamLeaf;
+import com.tailf.conf.ConfXMLParamStart;
+import com.tailf.conf.ConfXMLParamStop;
+import com.tailf.conf.ConfXMLParamValue;
+import com.tailf.navu.NavuContainer;
+import com.tailf.navu.NavuContext;
+import com.tailf.navu.NavuException;
+import com.tailf.navu.NavuList;
+
+/**
+ * Index from device name to the /l3vpn:topology connection it is part of.
+ *
+ * The index is shared by all concurrent create() callbacks, which only
+ * read it. It is built from the committed topology by the
+ * CacheSubscriber and kept up to date per connection as changes are
+ * committed, so it never holds data of a dry-run or aborted transaction.
+ */
+public final class TopologyIndex {
+
+    private static final String TOPOLOGY = "/l3vpn:topology";
+
+    /**
+     * One side of a topology connection.
+     */
+    public static final class LinkEndpoint {
+        private final String device;
+        private final String iface;
+        private final String ipAddress;
+        private final Ipv4Prefix ipPrefix;
+
+        public LinkEndpoint(String device, String iface, String ipAddress) {
+            this.device = device;
+            this.iface = iface;
+            this.ipAddress = ipAddress;
+            this.ipPrefix = ipAddress == null ?
+                null : Ipv4Prefix.parse(ipAddress);
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public String getInterface() {
+            return iface;
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+
+        /**
+         * The ip-address parsed, or null if it is not set.
+         */
+        public Ipv4Prefix getIpPrefix() {
+            return ipPrefix;
+        }
+    }
+
+    /**
+     * A topology connection as seen from one of its devices.
+     */
+    public static final class Link {
+        private final String connection;
+        private final String side;
+        private final LinkEndpoint mine;
+        private final LinkEndpoint peer;
+        private final String vlan;
+
+        public Link(String connection, String side, LinkEndpoint mine,
+                    LinkEndpoint peer, String vlan) {
+            this.connection = connection;
+            this.side = side;
+            this.mine = mine;
+            this.peer = peer;
+            this.vlan = vlan;
+        }
+
+        public String getConnection() {
+            return connection;
+        }
+
+        /**
+         * Name of the container holding my endpoint, endpoint-1 or
+         * endpoint-2.
+         */
+        public String getSide() {
+            return side;
+        }
+
+        public LinkEndpoint getMyEndpoint() {
+            return mine;
+        }
+
+        public LinkEndpoint getConnectedEndpoint() {
+            return peer;
+        }
+
+        public String getVlan() {
+            return vlan;
+        }
+    }
+
+    private static final TopologyIndex INSTANCE = new TopologyIndex();
+
+    private final ConcurrentHashMap<String, Link> byDevice =
+        new ConcurrentHashMap<String, Link>();
+    // connection name -> the two links indexed for it, guarded by this
+    private final Map<String, Link[]> byConnection =
+        new HashMap<String, Link[]>();
+    private volatile boolean built = false;
+    private boolean disabled = false;
+
+    private TopologyIndex() {
+    }
+
+    public static TopologyIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A new, empty index not shared with the service, for benchmarks.
+     */
+    static TopologyIndex newIndex() {
+        return new TopologyIndex();
+    }
+
+    /**
+     * Find the connection the device is part of.
+     *
+     * An indexed entry is only trusted if the connection is the same in
+     * the calling transaction, both endpoints and the link-vlan,
+     * otherwise the topology of the transaction is scanned. The index
+     * itself is never changed here.
+     *
+     * @param topology - the /l3vpn:topology container
+     * @param deviceName - the device to look up
+     * @return the link or null if the device is not in any connection
+     * @throws ConfException
+     * @throws java.io.IOException
+     */
+    public Link lookup(NavuContainer topology, String deviceName)
+        throws ConfException, java.io.IOException {
+        Link link = built ? byDevice.get(deviceName) : null;
+        if (link != null && isCurrent(topology, link)) {
+            return link;
+        }
+        NavuList connections = topology.list("connection");
+        for (NavuContainer conn : connections.elements()) {
+            for (Link l : readLinks(conn)) {
+                if (deviceName.equals(l.getMyEndpoint().getDevice())) {
+                    return l;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Index all connections in CDB, replacing what was indexed.
+     */
+    public synchronized void build(CdbSession session)
+        throws ConfException, java.io.IOException {
+        if (disabled) {
+            return;
+        }
+        byDevice.clear();
+        byConnection.clear();
+        String list = TOPOLOGY + "/connection";
+        int n = session.getNumberOfInstances(list);
+        for (int i = 0; i < n; i++) {
+            String name =
+                session.getElem(list + "[" + i + "]/name").toString();
+            putConnection(name, readLinks(session, name));
+        }
+        built = true;
+    }
+
+    /**
+     * Re-read the given connections from CDB and update the index.
+     * Connections that no longer exist are dropped.
+     */
+    public synchronized void refresh(CdbSession session,
+                                     Collection<String> connections)
+        throws ConfException, java.io.IOException {
+        if (!built) {
+            return;
+        }
+        for (String name : connections) {
+            String path = TOPOLOGY + "/connection{" + name + "}";
+            if (!session.exists(path)) {
+                removeConnection(name);
+                continue;
+            }
+            putConnection(name, readLinks(session, name));
+        }
+    }
+
+    /**
+     * Add or replace a connection without reading NCS. The index is
+     * considered built after this.
+     */
+    synchronized void load(String name, LinkEndpoint e1, LinkEndpoint e2,
+                           String vlan) {
+        putConnection(name, links(name, e1, e2, vlan));
+        built = true;
+    }
+
+    /**
+     * The indexed link of the device, not checked against NCS.
+     */
+    Link get(String deviceName) {
+        return byDevice.get(deviceName);
+    }
+
+    /**
+     * Drop the whole index. Lookups scan the topology until it is built
+     * again.
+     */
+    public synchronized void invalidate() {
+        built = false;
+        byDevice.clear();
+        byConnection.clear();
+    }
+
+    /**
+     * Drop the index for good, when it can no longer be kept up to date.
+     * Lookups scan the topology until the package is reloaded.
+     */
+    public synchronized void disable() {
+        disabled = true;
+        invalidate();
+    }
+
+    /**
+     * Whether the connection of the link is the same in the transaction
+     * of the topology container, read in one request.
+     */
+    private static boolean isCurrent(NavuContainer topology, Link link)
+        throws ConfException, java.io.IOException {
+        NavuContext ctx = topology.context();
+        String path = topology.getKeyPath() + "/connection{%s}";
+        if (!ctx.getMaapi().exists(ctx.getMaapiHandle(), path,
+                                   link.getConnection())) {
+            return false;
+        }
+        String[] leaves = {"device", "interface", "ip-address"};
+        ConfXMLParam[] params = new ConfXMLParam[2 * leaves.length + 5];
+        int i = 0;
+        for (String side : new String[] {"endpoint-1", "endpoint-2"}) {
+            params[i++] = new ConfXMLParamStart(l3vpn.prefix, side);
+            for (String leaf : leaves) {
+                params[i++] = new ConfXMLParamLeaf(l3vpn.prefix, leaf);
+            }
+            params[i++] = new ConfXMLParamStop(l3vpn.prefix, side);
+        }
+        params[i] = new ConfXMLParamLeaf(l3vpn.prefix, "link-vlan");
+
+        // side/leaf -> value, leaves not set are left out
+        Map<String, String> v = new HashMap<String, String>();
+        String side = null;
+        for (ConfXMLParam p : ctx.getMaapi().getValues(
+                 ctx.getMaapiHandle(), params, path,
+                 link.getConnection())) {
+            if (p instanceof ConfXMLParamStart) {
+                side = p.getTag();
+            } else if (p instanceof ConfXMLParamStop) {
+                side = null;
+            } else if (p instanceof ConfXMLParamValue) {
+                v.put(side == null ? p.getTag() : side + "/" + p.getTag(),
+                      p.getValue().toString());
+            }
+        }
+        String peerSide = "endpoint-1".equals(link.getSide()) ?
+            "endpoint-2" : "endpoint-1";
+        return same(link.getMyEndpoint(), link.getSide(), v) &&
+            same(link.getConnectedEndpoint(), peerSide, v) &&
+            equal(link.getVlan(), v.get("link-vlan"));
+    }
+
+    private static boolean same(LinkEndpoint endpoint, String side,
+                                Map<String, String> v) {
+        return equal(endpoint.getDevice(), v.get(side + "/device")) &&
+            equal(endpoint.getInterface(), v.get(side + "/interface")) &&
+            equal(endpoint.getIpAddress(), v.get(side + "/ip-address"));
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private Link[] readLinks(NavuContainer conn) throws NavuException {
+        String name = conn.leaf("name").valueAsString();
+        LinkEndpoint e1 = readEndpoint(conn.container("endpoint-1"));
+        LinkEndpoint e2 = readEndpoint(conn.container("endpoint-2"));
+        String vlan = conn.leaf("link-vlan").valueAsString();
+        return links(name, e1, e2, vlan);
+    }
+
+    private static Link[] links(String name, LinkEndpoint e1,
+                                LinkEndpoint e2, String vlan) {
+        return new Link[] {
+            new Link(name, "endpoint-1", e1, e2, vlan),
+            new Link(name, "endpoint-2", e2, e1, vlan) };
+    }
+
+    private LinkEndpoint readEndpoint(NavuContainer endpoint)
+        throws NavuException {
+        return new LinkEndpoint(endpoint.leaf("device").valueAsString(),
+                                endpoint.leaf("interface").valueAsString(),
+                                endpoint.leaf("ip-address").valueAsString());
+    }
+
+    private Link[] readLinks(CdbSession session, String name)
+        throws ConfException, java.io.IOException {
+        String path = TOPOLOGY + "/connection{" + name + "}";
+        LinkEndpoint e1 = readEndpoint(session, path + "/endpoint-1");
+        LinkEndpoint e2 = readEndpoint(session, path + "/endpoint-2");
+        String vlan = elemAsString(session, path + "/link-vlan");
+        return links(name, e1, e2, vlan);
+    }
+
+    private LinkEndpoint readEndpoint(CdbSession session, String path)
+        throws ConfException, java.io.IOException {
+        return new LinkEndpoint(elemAsString(session, path + "/device"),
+                                elemAsString(session, path + "/interface"),
+                                elemAsString(session, path + "/ip-address"));
+    }
+
+    private static String elemAsString(CdbSession session, String path)
+        throws ConfException, java.io.IOException {
+        if (!session.exists(path)) {
+            return null;
+        }
+        return session.getElem(path).toString();
+    }
+
+    // Must hold the lock.
+    private void putConnection(String name, Link[] links) {
+        removeConnection(name);
+        byConnection.put(name, links);
+        for (Link link : links) {
+            String device = link.getMyEndpoint().getDevice();
+            if (device != null) {
+                // The first connection of a device wins, like the
+                // original linear scan.
+                Link current = byDevice.get(device);
+                if (current == null ||
+                    current.getConnection().equals(name)) {
+                    byDevice.put(device, link);
+                }
+            }
+        }
+    }
+
+    // Must hold the lock.
+    private void removeConnection(String name) {
+        Link[] old = byConnection.remove(name);
+        if (old == null) {
+            return;
+        }
+        for (Link link : old) {
+            String device = link.getMyEndpoint().getDevice();
+            Link current = device == null ? null : byDevice.get(device);
+            if (current != null && name.equals(current.getConnection())) {
+                byDevice.remove(device);
+            }
+        }
+    }
+}
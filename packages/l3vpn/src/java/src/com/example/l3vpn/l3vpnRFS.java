@@ -1,27 +1,39 @@
 package com.example.l3vpn;
 
-import com.example.l3vpn.namespaces.*;
-
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.Properties;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
 
 import com.tailf.conf.*;
 import com.tailf.navu.*;
-import com.tailf.ncs.ns.Ncs;
+import com.tailf.ncs.PlanComponent;
 import com.tailf.dp.*;
 import com.tailf.dp.annotations.*;
 import com.tailf.dp.proto.*;
 import com.tailf.dp.services.*;
 import com.tailf.ncs.template.Template;
-import com.tailf.ncs.template.TemplateVariables;
 
 public class l3vpnRFS {
 
+    private static final Logger LOGGER = Logger.getLogger(l3vpnRFS.class);
+
+    // Plan states of an endpoint component
+    private static final String TOPOLOGY_RESOLVED = "l3vpn:topology-resolved";
+    private static final String PE_CONFIGURED = "l3vpn:pe-configured";
+    private static final String CE_CONFIGURED = "l3vpn:ce-configured";
+    private static final String QOS_CONFIGURED = "l3vpn:qos-configured";
+
+    // The states reached by applying the templates of an endpoint, in
+    // the order the planner puts the templates
+    private static final String[] APPLY_STATES = {
+        PE_CONFIGURED, CE_CONFIGURED, QOS_CONFIGURED
+    };
+
 
     /**
      * Create callback method.
@@ -56,403 +68,167 @@ public class l3vpnRFS {
                              Properties opaque)
                              throws ConfException {
 
+        NavuContainer topology = ncsRoot.getParent().
+                container("http://com/example/l3vpn").
+                container("topology");
+
+        // Time spent in each phase goes to /l3vpn:vpn/stats
+        MappingStats stats = MappingStats.getInstance();
+        long start = System.nanoTime();
+        long t = start;
+
+        // Read the service instance, resolving the PE connection for
+        // every endpoint router and the QOS policy, once. The mapping
+        // below only works on this snapshot.
+        ServiceSnapshot snapshot;
+        try {
+            snapshot = ServiceSnapshot.read((NavuContainer) service,
+                                            topology);
+        } catch (DpCallbackException e) {
+            throw (DpCallbackException) e;
+        } catch (Exception e) {
+            throw new DpCallbackException("Not able to read service", e);
+        }
+        t = record(stats.phase(MappingStats.READ), t);
+        List<ServiceSnapshot.Endpoint> endpoints = snapshot.getEndpoints();
+
+        // Check that the CE and PE devices involved have been
+        // sync-from:ed.
         try {
-            // check if it is reasonable to assume that devices
-            // initially has been sync-from:ed
             NavuList managedDevices = ncsRoot.
                 container("devices").list("device");
-            for (NavuContainer device : managedDevices) {
-                if (device.list("capability").isEmpty()) {
-                    String mess = "Device %1$s has no known capabilities, " +
-                                   "has sync-from been performed?";
-                    String key = device.getKey().elementAt(0).toString();
-                    throw new DpCallbackException(String.format(mess, key));
-                }
+            for (String device : snapshot.getDevices()) {
+                DeviceSyncCache.getInstance().check(managedDevices, device);
             }
         } catch (DpCallbackException e) {
             throw (DpCallbackException) e;
         } catch (Exception e) {
             throw new DpCallbackException("Not able to check devices", e);
         }
-
-        Template peTemplate = new Template(context,
-                "l3vpn-pe");
-        Template ceTemplate = new Template(context,
-               "l3vpn-ce");
-        Template qosTemplate = new Template(context,
-               "l3vpn-qos");
-        Template qosPeTemplate = new Template(context,
-                "l3vpn-qos-pe");
-        Template qosPrioTemplate = new Template(context,
-                "l3vpn-qos-prio");
-        Template qosPePrioTemplate = new Template(context,
-                "l3vpn-qos-pe-prio");
-        Template aclTemplate = new Template(context,
-                 "l3vpn-acl");
-        Template classTemplate = new Template(context,
-                 "l3vpn-qos-class");
-        Template peClassTemplate = new Template(context,
-                 "l3vpn-qos-pe-class");
-
-        NavuList endpoints = service.list("endpoint");
-        NavuContainer topology = ncsRoot.getParent().
-                container("http://com/example/l3vpn").
-                container("topology");
-        for(NavuContainer endpoint : endpoints.elements()) {
-            try {
-                String ceName =  endpoint.leaf("ce-device").
-                                                    valueAsString();
-                // Get the PE connection for this endpoint router
-                NavuContainer conn = getConnection(topology,
-                                               endpoint.leaf("ce-device").
-                                               valueAsString());
-                NavuContainer peEndpoint = getConnectedEndpoint(
-                                                conn,ceName);
-                NavuContainer ceEndpoint = getMyEndpoint(
-                                                conn,ceName);
-
-                NavuLeaf vlan = conn.leaf("link-vlan");
-
-                TemplateVariables vpnVar = new TemplateVariables();
-
-                vpnVar.putQuoted("PE",peEndpoint.leaf("device").
-                                            valueAsString());
-                vpnVar.putQuoted("CE",endpoint.leaf("ce-device").
-                                            valueAsString());
-                vpnVar.putQuoted("CE_AS_NUM",endpoint.leaf("as-number").
-                        valueAsString());
-                vpnVar.putQuoted("VLAN_ID", vlan.valueAsString());
-                vpnVar.putQuoted("LINK_PE_ADR", getIPAddress(peEndpoint.
-                                                    leaf("ip-address").
-                                                    valueAsString()));
-                vpnVar.putQuoted("LINK_CE_ADR", getIPAddress(ceEndpoint.
-                                                    leaf("ip-address").
-                                                    valueAsString()));
-                vpnVar.putQuoted("LINK_MASK", getNetMask(ceEndpoint.
-                                                    leaf("ip-address").
-                                                    valueAsString()));
-                vpnVar.putQuoted("LINK_PREFIX",getIPPrefix(ceEndpoint.
-                                    leaf("ip-address").
-                                    valueAsString()));
-                vpnVar.putQuoted("PE_INT_NAME", peEndpoint.
-                                                 leaf("interface").
-                                                 valueAsString());
-                vpnVar.putQuoted("CE_INT_NAME", ceEndpoint.
-                                                leaf("interface").
-                                                valueAsString());
-                vpnVar.putQuoted("CE_LOCAL_INT_NAME", endpoint.
-                                            leaf("ce-interface").
-                                            valueAsString());
-                vpnVar.putQuoted("LOCAL_CE_ADR", getIPAddress(
-                                                    getNextIPV4Address(
-                                                     endpoint.
-                                                     leaf("ip-network").
-                                                     valueAsString())));
-                vpnVar.putQuoted("LOCAL_CE_NET", getIPAddress(
-                                                    endpoint.
-                                                    leaf("ip-network").
-                                                    valueAsString()));
-                vpnVar.putQuoted("CE_MASK", getNetMask(endpoint.
-                                                leaf("ip-network").
-                                                valueAsString()));
-                vpnVar.putQuoted("BW", endpoint.leaf("bandwidth").
-                                                    valueAsString());
-
-                peTemplate.apply(service, vpnVar);
-                ceTemplate.apply(service, vpnVar);
-
-
-                // Start of QOS section
-
-                if (service.container("qos").leaf("qos-policy").exists()) {
-                    Map<String, List<String>> qosClassMap= new HashMap<String,
-                            List<String>>();
-
-                    TemplateVariables qosVar = new TemplateVariables();
-                    qosVar.putQuoted("POLICY_NAME",service.container("qos").
-                            leaf("qos-policy").valueAsString());
-                    qosVar.putQuoted("CE_INT_NAME", ceEndpoint.
-                            leaf("interface").
-                            valueAsString());
-                    qosVar.putQuoted("PE_INT_NAME", peEndpoint.
-                            leaf("interface").
-                            valueAsString());
-                    qosVar.putQuoted("VLAN_ID", vlan.valueAsString());
-                    qosVar.putQuoted("PE",peEndpoint.leaf("device").
-                            valueAsString());
-                    qosVar.putQuoted("CE",endpoint.leaf("ce-device").
-                            valueAsString());
-
-                    // Find the globally defined QOS policy our service is
-                    // referring to.
-                    NavuNode n = service.container("qos").
-                            leaf("qos-policy").deref().get(0);
-                    NavuContainer qosPolicy =
-                            (NavuContainer) ((NavuLeaf) n).getParent();
-                    NavuList policyClass = qosPolicy.list("class");
-                    // Iterate over all classes for this policy and its
-                    //settings.
-                    int classCounter = 0;
-                    for(NavuContainer c : policyClass.elements()) {
-                        NavuNode qosClass = c.leaf("qos-class").deref().get(0);
-
-                        qosClassMap.put(c.leaf("qos-class").valueAsString(),
-                                new ArrayList<String>());
-                        NavuContainer cl =  (NavuContainer)
-                                            ((NavuLeaf) qosClass).getParent();
-
-                        if (cl.leaf("dscp-value").exists()) {
-                            qosVar.putQuoted("CLASS_DSCP",cl.leaf("dscp-value").
-                                valueAsString());
-                            if (cl.leaf("dscp-value").valueAsString().
-                                    equals("ef") ||
-                                cl.leaf("dscp-value").valueAsString().
-                                    equals("af31")) {
-                                    qosVar.putQuoted("CLASS_PRIORITY","high");
-                            }
-                            else {
-                                qosVar.putQuoted("CLASS_PRIORITY","low");
-                            }
-                        }
-                        else {
-                            qosVar.putQuoted("CLASS_PRIORITY","low");
-                            qosVar.putQuoted("CLASS_DSCP", "");
-                        }
-
-
-                        qosVar.putQuoted("CLASS_NAME",c.leaf("qos-class").
-                                valueAsString());
-                        qosVar.putQuoted("CLASS_BW",
-                                c.leaf("bandwidth-percentage").
-                                valueAsString());
-                        qosVar.putQuoted("CLASS_COUNTER",String.
-                                                valueOf(classCounter));
-
-
-                        if(c.leaf("priority").exists()) {
-                            qosPrioTemplate.apply(service,qosVar);
-                            qosPePrioTemplate.apply(service,qosVar);
-
-                        }
-                        else {
-                            qosTemplate.apply(service, qosVar);
-                            qosPeTemplate.apply(service, qosVar);
-
-                        }
-                        peClassTemplate.apply(service, qosVar);
-
-                        // Also list all the globally defined traffic match
-                        // statements for this class and add them to a arraylist
-                        // to use for processing.
-                        for(NavuContainer match : cl.list("match-traffic").
-                                elements()) {
-                            qosClassMap.get(c.leaf("qos-class").
-                                    valueAsString()).
-                                    add("GLOBAL-"+match.leaf("name").
-                                            valueAsString());
-
-                            TemplateVariables aclVar =
-                                    setAclVars(match,"GLOBAL");
-                            aclVar.putQuoted("CE",endpoint.leaf("ce-device").
-                                    valueAsString());
-                            aclTemplate.apply(service, aclVar);
-                        }
-                        classCounter++;
-                    }
-
-                    // Create ACL entries for all service specific match rules
-
-                    NavuList matchRules = service.container("qos").
-                                    list("custom-qos-match");
-                    for(NavuContainer match : matchRules.elements()) {
-                        String namePrefix = service.leaf("name").
-                                                    valueAsString();
-                        if(qosClassMap.containsKey(match.
-                                leaf("qos-class").valueAsString())) {
-                            qosClassMap.get(match.leaf("qos-class")
-                                    .valueAsString()).
-                            add(namePrefix+"-"+match.leaf("name").
-                                                    valueAsString());
-                        }
-                        TemplateVariables aclVar = setAclVars(match,namePrefix);
-
-                        aclVar.putQuoted("CE",endpoint.leaf("ce-device").
-                                valueAsString());
-                        aclTemplate.apply(service, aclVar);
-                    }
-
-                    for (Map.Entry<String, List<String>> entry :
-                                            qosClassMap.entrySet()) {
-                        for (String matchEntry : entry.getValue() ) {
-                            TemplateVariables classVar = new
-                                                    TemplateVariables();
-                            classVar.putQuoted("CLASS_NAME", entry.getKey());
-                            classVar.putQuoted("MATCH_ENTRY", matchEntry);
-                            classVar.putQuoted("CE",endpoint.leaf("ce-device").
-                                    valueAsString());
-                            classTemplate.apply(service, classVar);
-                        }
-                    }
-                }
-                //qosTemplate.apply(service, variables);
-
-            } catch (Exception e) {
-                throw new DpCallbackException(e.getMessage(), e);
-            }
-        }
-        return opaque;
-    }
-
-    private TemplateVariables setAclVars(NavuContainer match,
-                                        String namePrefix)
-        throws NavuException, UnknownHostException {
-        TemplateVariables aclVar = new TemplateVariables();
-
-        aclVar.putQuoted("ACL_NAME", namePrefix + "-" +
-                                    match.leaf("name").
-                                       valueAsString());
-        aclVar.putQuoted("PROTOCOL", match.leaf("protocol").
-            valueAsString());
-        aclVar.putQuoted("SOURCE_IP", match.leaf("source-ip").
-                valueAsString());
-        if ("any".equals(match.leaf("source-ip").valueAsString())) {
-            aclVar.putQuoted("SOURCE_IP_ADR","any");
-            aclVar.putQuoted("SOURCE_WMASK"," ");
-        }
-        else {
-            aclVar.putQuoted("SOURCE_IP_ADR",
-                    getIPAddress(match.leaf("source-ip").
-                            valueAsString()));
-            aclVar.putQuoted("SOURCE_WMASK",
-                    prefixToWildcardMask(getIPPrefix(
-                            match.leaf("source-ip").
-                            valueAsString())));
-        }
-        if ("any".equals(match.leaf("destination-ip").
-                valueAsString())) {
-            aclVar.putQuoted("DEST_IP_ADR","any");
-            aclVar.putQuoted("DEST_WMASK"," ");
-        }
-        else {
-            aclVar.putQuoted("DEST_IP_ADR",
-                    getIPAddress(match.leaf("destination-ip").
-                            valueAsString()));
-            aclVar.putQuoted("DEST_WMASK",
-                    prefixToWildcardMask(getIPPrefix(
-                            match.leaf("destination-ip").
-                            valueAsString())));
-        }
-        aclVar.putQuoted("PORT_START", match.leaf("port-start").
-                valueAsString());
-        aclVar.putQuoted("PORT_END", match.leaf("port-end").
-                valueAsString());
-        return aclVar;
-    }
-
-    private NavuContainer getConnectedEndpoint(NavuContainer conn,
-                                    String deviceName)
-            throws NavuException {
-        if (deviceName.equals(conn.container("endpoint-1").
-                leaf("device").valueAsString() )  ) {
-                return conn.container("endpoint-2");
+        t = record(stats.phase(MappingStats.DEVICE_CHECK), t);
+
+        // Plan phase, no NCS access. Applying the same template with the
+        // same variables twice only gives FASTMAP more to merge, so exact
+        // duplicates, e.g. the ACLs of endpoints sharing a CE, are
+        // dropped.
+        List<List<TemplateOp>> plans;
+        int planned = 0;
+        int applies = 0;
+        try {
+            List<List<TemplateOp>> all =
+                MappingPlanner.plan(snapshot, endpoints);
+            for (List<TemplateOp> ops : all) {
+                planned += ops.size();
             }
-            else {
-                return conn.container("endpoint-1");
+            plans = MappingPlanner.distinct(all);
+            for (List<TemplateOp> ops : plans) {
+                applies += ops.size();
             }
-    }
-
-    private NavuContainer getMyEndpoint(NavuContainer conn,
-            String deviceName)
-                    throws NavuException {
-        if (deviceName.equals(conn.container("endpoint-1").
-                leaf("device").valueAsString() )  ) {
-            return conn.container("endpoint-1");
-        }
-        else {
-            return conn.container("endpoint-2");
+        } catch (Exception e) {
+            throw new DpCallbackException(e.getMessage(), e);
         }
-    }
-
-
-    private NavuContainer getConnection(NavuContainer topology,
-            String deviceName)
-                    throws NavuException {
-
-        NavuList connections = topology.list("connection");
-        for(NavuContainer conn : connections.elements()) {
-            if (deviceName.equals(conn.container("endpoint-1").
-                    leaf("device").valueAsString() ) ||
-                deviceName.equals(conn.container("endpoint-2").
-                    leaf("device").valueAsString())) {
-                return conn;
+        t = record(stats.phase(MappingStats.PLAN), t);
+
+        // Apply phase, endpoint by endpoint in planned order, with a
+        // plan component per endpoint.
+        PlanComponent self = new PlanComponent(service, "self", "ncs:self");
+        self.appendState("ncs:init").appendState("ncs:ready");
+        self.setReached("ncs:init");
+
+        Map<String, Template> templates = new HashMap<String, Template>();
+        int acls = 0;
+        for (int i = 0; i < endpoints.size(); i++) {
+            PlanComponent component = endpointComponent(service,
+                                                        endpoints.get(i));
+            int reached = 0;
+            for (TemplateOp op : plans.get(i)) {
+                // The templates of the states before are all applied
+                int state = applyState(op.getTemplate());
+                while (reached < state) {
+                    component.setReached(APPLY_STATES[reached++]);
+                }
+                Template template = templates.get(op.getTemplate());
+                if (template == null) {
+                    template = new Template(context, op.getTemplate());
+                    templates.put(op.getTemplate(), template);
+                }
+                long applyStart = System.nanoTime();
+                template.apply(service, op.toTemplateVariables());
+                stats.template(op.getTemplate()).
+                    record(System.nanoTime() - applyStart);
+                if (MappingPlanner.ACL.equals(op.getTemplate())) {
+                    acls++;
+                }
             }
+            // All templates of the endpoint are applied, some of them
+            // possibly by an earlier endpoint sharing its CE or PE
+            while (reached < APPLY_STATES.length) {
+                component.setReached(APPLY_STATES[reached++]);
+            }
+            component.setReached("ncs:ready");
         }
-        return null;
+        self.setReached("ncs:ready");
+        long end = record(stats.phase(MappingStats.APPLY), t);
+
+        LOGGER.info(String.format(
+            "l3vpn %1$s: %2$d template applies, %3$d duplicates skipped, " +
+            "%4$d endpoints",
+            snapshot.getName(), applies, planned - applies,
+            endpoints.size()));
+
+        QosPolicy qosPolicy = snapshot.getQosPolicy();
+        stats.service(snapshot.getName(),
+                      snapshot.getEndpoints().size(),
+                      qosPolicy == null ? 0 : qosPolicy.getClasses().size(),
+                      acls, applies, planned - applies,
+                      end - start);
+        return opaque;
     }
 
-    private String getIPAddress(String prefix) {
-        String[] parts = prefix.split("/");
-        return parts[0];
-    }
-    private String getIPPrefix(String prefix) {
-        String[] parts = prefix.split("/");
-        return parts[1];
+    /**
+     * The plan component of an endpoint. Its CE has been resolved to a
+     * topology connection when create() gets this far.
+     */
+    private static PlanComponent endpointComponent(
+        NavuNode service, ServiceSnapshot.Endpoint endpoint)
+        throws NavuException {
+        PlanComponent component = new PlanComponent(
+            service, endpoint.getId(), "l3vpn:l3vpn-endpoint");
+        component.appendState("ncs:init").
+            appendState(TOPOLOGY_RESOLVED).
+            appendState(PE_CONFIGURED).
+            appendState(CE_CONFIGURED).
+            appendState(QOS_CONFIGURED).
+            appendState("ncs:ready");
+        component.setReached("ncs:init").
+            setReached(TOPOLOGY_RESOLVED);
+        return component;
     }
 
-    private String getNetMask(String addr) throws UnknownHostException {
-        String[] parts = addr.split("/");
-        String ip = parts[0];
-        int prefix;
-        if (parts.length < 2) {
-            prefix = 0;
-        } else {
-            prefix = Integer.parseInt(parts[1]);
+    /**
+     * The index in APPLY_STATES of the state a template belongs to.
+     */
+    private static int applyState(String template) {
+        if (MappingPlanner.PE.equals(template)) {
+            return 0;
         }
-        int mask = 0xffffffff << (32 - prefix);
-
-        int value = mask;
-        byte[] bytes = new byte[]{
-                (byte)(value >>> 24), (byte)(value >> 16 & 0xff),
-                (byte)(value >> 8 & 0xff), (byte)(value & 0xff) };
-
-        InetAddress netAddr = InetAddress.getByAddress(bytes);
-        return netAddr.getHostAddress();
+        if (MappingPlanner.CE.equals(template)) {
+            return 1;
+        }
+        return 2;
     }
 
-    private String getNextIPV4Address(String ip) {
-        String ipAddr = ip.split("/")[0];
-        String mask = ip.split("/")[1];
-
-        String[] nums = ipAddr.split("\\.");
-        int i = (Integer.parseInt(nums[0]) << 24 |
-                        Integer.parseInt(nums[2]) << 8
-              |  Integer.parseInt(nums[1]) << 16 |
-                      Integer.parseInt(nums[3])) + 1;
-
-        // If you wish to skip over .255 addresses.
-        if ((byte) i == -1) i++;
-
-        return String.format("%d.%d.%d.%d",
-                             i >>> 24 & 0xFF, i >> 16 & 0xFF,
-                             i >>   8 & 0xFF, i >>  0 & 0xFF)
-                             +"/"+mask;
+    /**
+     * Record the time since start.
+     *
+     * @return the current time
+     */
+    private static long record(MappingStats.Latency latency, long start) {
+        long now = System.nanoTime();
+        latency.record(now - start);
+        return now;
     }
 
-    private String prefixToWildcardMask(String pre)
-            throws UnknownHostException{
-            int prefix = Integer.parseInt(pre);
-            int mask = 0xffffffff << (32 - prefix);
-            int value = mask;
-            byte[] bytes = new byte[]{
-                (byte)(~(value >>> 24) & 0xFF),
-                (byte)( ~(value >> 16 & 0xff) & 0xFF),
-                (byte)( ~(value >> 8 & 0xff) & 0xFF),
-                (byte)( ~(value & 0xff) & 0xFF ) };
-
-            InetAddress netAddr = InetAddress.getByAddress(bytes);
-            return netAddr.getHostAddress();
-        }
-
     /**
      * Init method for selftest action
      */
@@ -481,4 +257,121 @@ public class l3vpnRFS {
             throw new DpCallbackException("self-test failed", e);
         }
     }
+
+    /**
+     * Init method for the drift-check action
+     */
+    @ActionCallback(callPoint="l3vpn-drift-check",
+                    callType=ActionCBType.INIT)
+    public void driftInit(DpActionTrans trans) throws DpCallbackException {
+    }
+
+    /**
+     * Compare the key facts of the services on their devices with the
+     * device config in CDB, report the mismatches.
+     */
+    @ActionCallback(callPoint="l3vpn-drift-check",
+                    callType=ActionCBType.ACTION)
+    public ConfXMLParam[] driftCheck(DpActionTrans trans, ConfTag name,
+                                     ConfObject[] kp, ConfXMLParam[] params)
+    throws DpCallbackException {
+        List<String> services = new ArrayList<String>();
+        for (ConfXMLParam param : params) {
+            ConfObject value = param.getValue();
+            if (value instanceof ConfList) {
+                for (ConfValue v : ((ConfList) value).elements()) {
+                    services.add(v.toString());
+                }
+            } else if (value != null) {
+                services.add(value.toString());
+            }
+        }
+
+        long start = System.nanoTime();
+        DriftCheck.Result result;
+        try {
+            result = DriftCheck.check(services,
+                                      trans.getUserInfo().getUserId());
+        } catch (Exception e) {
+            throw new DpCallbackException("drift-check failed", e);
+        }
+        long time = (System.nanoTime() - start) / 1000000;
+        LOGGER.info(String.format(
+            "l3vpn drift check: %1$d services, %2$d facts, " +
+            "%3$d mismatches in %4$d ms", result.getServices(),
+            result.getFacts(), result.getMismatches().size(), time));
+
+        String nsPrefix = "l3vpn";
+        List<ConfXMLParam> out = new ArrayList<ConfXMLParam>();
+        out.add(new ConfXMLParamValue(nsPrefix, "services",
+                                      new ConfUInt32(result.getServices())));
+        out.add(new ConfXMLParamValue(nsPrefix, "facts",
+                                      new ConfUInt32(result.getFacts())));
+        out.add(new ConfXMLParamValue(nsPrefix, "time", new ConfUInt32(time)));
+        for (DriftCheck.Mismatch m : result.getMismatches()) {
+            out.add(new ConfXMLParamStart(nsPrefix, "mismatch"));
+            out.add(new ConfXMLParamValue(nsPrefix, "service",
+                                          new ConfBuf(m.getService())));
+            if (m.getDevice() != null) {
+                out.add(new ConfXMLParamValue(nsPrefix, "device",
+                                              new ConfBuf(m.getDevice())));
+            }
+            out.add(new ConfXMLParamValue(nsPrefix, "fact",
+                                          new ConfBuf(m.getFact())));
+            out.add(new ConfXMLParamValue(nsPrefix, "expected",
+                                          new ConfBuf(m.getExpected())));
+            out.add(new ConfXMLParamValue(nsPrefix, "actual",
+                                          new ConfBuf(m.getActual())));
+            out.add(new ConfXMLParamStop(nsPrefix, "mismatch"));
+        }
+        return out.toArray(new ConfXMLParam[out.size()]);
+    }
+
+    /**
+     * Init method for the impacted-services action
+     */
+    @ActionCallback(callPoint="l3vpn-impacted-services",
+                    callType=ActionCBType.INIT)
+    public void impactedInit(DpActionTrans trans) throws DpCallbackException {
+    }
+
+    /**
+     * List the services that would be re-deployed if the given topology
+     * connections, devices, qos-policies or qos-classes were changed.
+     */
+    @ActionCallback(callPoint="l3vpn-impacted-services",
+                    callType=ActionCBType.ACTION)
+    public ConfXMLParam[] impacted(DpActionTrans trans, ConfTag name,
+                                   ConfObject[] kp, ConfXMLParam[] params)
+    throws DpCallbackException {
+        ServiceIndex index = ServiceIndex.getInstance();
+        if (!index.isBuilt()) {
+            throw new DpCallbackException(
+                "Service index not available, see the java-vm log");
+        }
+        Map<String, List<String>> input = new HashMap<String, List<String>>();
+        for (ConfXMLParam param : params) {
+            List<String> values = new ArrayList<String>();
+            ConfObject value = param.getValue();
+            if (value instanceof ConfList) {
+                for (ConfValue v : ((ConfList) value).elements()) {
+                    values.add(v.toString());
+                }
+            } else if (value != null) {
+                values.add(value.toString());
+            }
+            input.put(param.getTag(), values);
+        }
+        Set<String> services = index.impacted(input.get("connection"),
+                                              input.get("device"),
+                                              input.get("qos-policy"),
+                                              input.get("qos-class"));
+        ConfValue[] result = new ConfValue[services.size()];
+        int i = 0;
+        for (String service : services) {
+            result[i++] = new ConfBuf(service);
+        }
+        return new ConfXMLParam[] {
+            new ConfXMLParamValue("l3vpn", "service", new ConfList(result))};
+    }
 }
@@ -0,0 +1,112 @@
+package com.example.l3vpn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class Ipv4PrefixTest {
+
+    @Test
+    public void parseAndFormat() {
+        for (String s : new String[] {"192.168.1.1/30", "10.0.0.0/8",
+                                      "172.16.254.3/24", "0.0.0.0/0",
+                                      "255.255.255.255/32"}) {
+            assertEquals(s, Ipv4Prefix.parse(s).toString());
+        }
+        Ipv4Prefix p = Ipv4Prefix.parse("10.1.2.3/24");
+        assertEquals(0x0a010203, p.getAddress());
+        assertEquals(24, p.getLength());
+        assertEquals("10.1.2.3", p.addressString());
+        assertEquals("24", p.lengthString());
+        assertEquals("255.255.255.0", p.netmaskString());
+        assertEquals("0.0.0.255", p.wildcardMaskString());
+    }
+
+    @Test
+    public void missingLengthIsHost() {
+        assertEquals(Ipv4Prefix.parse("10.1.2.3/32"),
+                     Ipv4Prefix.parse("10.1.2.3"));
+    }
+
+    @Test
+    public void zeroAddress() {
+        Ipv4Prefix p = Ipv4Prefix.parse("0.0.0.0/32");
+        assertEquals(0, p.getAddress());
+        assertEquals("0.0.0.0", p.addressString());
+        assertEquals("255.255.255.255", p.netmaskString());
+        assertEquals("0.0.0.0", p.wildcardMaskString());
+    }
+
+    @Test
+    public void zeroLength() {
+        // The old getNetMask gave 255.255.255.255 for /0
+        Ipv4Prefix p = Ipv4Prefix.parse("0.0.0.0/0");
+        assertEquals("0.0.0.0", p.netmaskString());
+        assertEquals("255.255.255.255", p.wildcardMaskString());
+    }
+
+    @Test
+    public void pointToPoint() {
+        Ipv4Prefix p = Ipv4Prefix.parse("10.10.1.0/31");
+        assertEquals("255.255.255.254", p.netmaskString());
+        assertEquals("0.0.0.1", p.wildcardMaskString());
+        assertEquals("10.10.1.1/31", p.nextHost().toString());
+    }
+
+    @Test
+    public void host() {
+        Ipv4Prefix p = Ipv4Prefix.parse("10.10.1.1/32");
+        assertEquals("255.255.255.255", p.netmaskString());
+        assertEquals("0.0.0.0", p.wildcardMaskString());
+        assertEquals("10.10.1.2/32", p.nextHost().toString());
+    }
+
+    @Test
+    public void nextHostKeepsOctetOrder() {
+        // The old getNextIPV4Address swapped the second and third octets
+        // and gave 10.2.1.4 here
+        assertEquals("10.1.2.4/24",
+                     Ipv4Prefix.parse("10.1.2.3/24").nextHost().toString());
+        assertEquals("192.168.7.2/24",
+                     Ipv4Prefix.parse("192.168.7.1/24").nextHost().
+                     toString());
+    }
+
+    @Test
+    public void nextHostSkipsBroadcast() {
+        assertEquals("10.0.0.254/24",
+                     Ipv4Prefix.parse("10.0.0.253/24").nextHost().
+                     toString());
+        // .255 is skipped, the next address is in the next /24
+        assertEquals("10.0.1.0/24",
+                     Ipv4Prefix.parse("10.0.0.254/24").nextHost().
+                     toString());
+        assertEquals("10.1.0.0/16",
+                     Ipv4Prefix.parse("10.0.255.254/16").nextHost().
+                     toString());
+    }
+
+    @Test
+    public void format() {
+        assertEquals("0.0.0.0", Ipv4Prefix.format(0));
+        assertEquals("255.255.255.255", Ipv4Prefix.format(0xffffffff));
+        assertEquals("128.0.10.100", Ipv4Prefix.format(0x80000a64));
+    }
+
+    @Test
+    public void badPrefixes() {
+        for (String s : new String[] {"", "10.1.2", "10.1.2.3.4",
+                                      "10.1.2.256", "10.1..3",
+                                      "10.1.2.3/", "10.1.2.3/33",
+                                      "10.1.2.3/8x", "10.1.2.3/100",
+                                      "1234.1.2.3", "a.b.c.d"}) {
+            try {
+                Ipv4Prefix.parse(s);
+                fail("Parsed " + s);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.l3vpn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MappingPlannerTest {
+
+    private static final InMemoryTopology TOPOLOGY = new InMemoryTopology(
+        Arrays.asList(link("c0", "ce0", "GigabitEthernet0/1", "10.1.1.2/30",
+                           "pe0", "GigabitEthernet0/0/0/1", "10.1.1.1/30",
+                           "101"),
+                      link("c1", "ce1", "GigabitEthernet0/2", "10.1.1.6/30",
+                           "pe0", "GigabitEthernet0/0/0/2", "10.1.1.5/30",
+                           "102")));
+
+    private static TopologyIndex.Link link(String name, String ce,
+                                           String ceIf, String ceAdr,
+                                           String pe, String peIf,
+                                           String peAdr, String vlan) {
+        return new TopologyIndex.Link(
+            name, "endpoint-1",
+            new TopologyIndex.LinkEndpoint(ce, ceIf, ceAdr),
+            new TopologyIndex.LinkEndpoint(pe, peIf, peAdr), vlan);
+    }
+
+    private static ServiceSnapshot.Endpoint endpoint(String id, String ce,
+                                                     String network) {
+        return new ServiceSnapshot.Endpoint(
+            id, ce, "GigabitEthernet0/11", Ipv4Prefix.parse(network),
+            "6000000", "65101", TOPOLOGY.scan(ce));
+    }
+
+    private static QosPolicy policy() {
+        Map<String, String> acl = QosPolicy.aclVariables(
+            "GLOBAL", "ssh", "tcp", "10.0.0.0/8", "any", "22", "22");
+        return new QosPolicy("GOLD", Collections.singletonList(
+            new QosPolicy.QosClass("BUSINESS", "af21", "20", 0, false,
+                                   Collections.singletonList("GLOBAL-ssh"),
+                                   Collections.singletonList(acl))));
+    }
+
+    private static List<String> templates(List<TemplateOp> ops) {
+        List<String> names = new ArrayList<String>();
+        for (TemplateOp op : ops) {
+            names.add(op.getTemplate());
+        }
+        return names;
+    }
+
+    @Test
+    public void endpointWithoutQos() {
+        ServiceSnapshot snapshot = new ServiceSnapshot(
+            "volvo", "12345", null,
+            Arrays.asList(endpoint("branch", "ce0", "192.168.0.0/24")),
+            new ArrayList<ServiceSnapshot.CustomMatch>());
+        List<TemplateOp> ops = MappingPlanner.plan(snapshot);
+        assertEquals(Arrays.asList(MappingPlanner.PE, MappingPlanner.CE),
+                     templates(ops));
+
+        Map<String, String> pe = new LinkedHashMap<String, String>();
+        pe.put("BW", "6000000");
+        pe.put("CE", "ce0");
+        pe.put("CE_AS_NUM", "65101");
+        pe.put("CE_INT_NAME", "GigabitEthernet0/1");
+        pe.put("LINK_CE_ADR", "10.1.1.2");
+        pe.put("LINK_MASK", "255.255.255.252");
+        pe.put("LINK_PE_ADR", "10.1.1.1");
+        pe.put("LINK_PREFIX", "30");
+        pe.put("PE", "pe0");
+        pe.put("PE_INT_NAME", "GigabitEthernet0/0/0/1");
+        pe.put("VLAN_ID", "101");
+        assertEquals(pe, ops.get(0).getVariables());
+
+        Map<String, String> ce = ops.get(1).getVariables();
+        assertEquals("GigabitEthernet0/11", ce.get("CE_LOCAL_INT_NAME"));
+        assertEquals("192.168.0.1", ce.get("LOCAL_CE_ADR"));
+        assertEquals("192.168.0.0", ce.get("LOCAL_CE_NET"));
+        assertEquals("255.255.255.0", ce.get("CE_MASK"));
+        // Variables the template does not use are not carried
+        assertNull(ops.get(0).getVariables().get("LOCAL_CE_ADR"));
+    }
+
+    @Test
+    public void endpointWithQos() {
+        List<ServiceSnapshot.CustomMatch> matches =
+            Collections.singletonList(new ServiceSnapshot.CustomMatch(
+                "web", "BUSINESS", "tcp", "any", "172.16.0.0/16", "80",
+                "443"));
+        ServiceSnapshot snapshot = new ServiceSnapshot(
+            "volvo", "12345", policy(),
+            Arrays.asList(endpoint("branch", "ce0", "192.168.0.0/24")),
+            matches);
+        List<TemplateOp> ops = MappingPlanner.plan(snapshot);
+        assertEquals(Arrays.asList(MappingPlanner.PE, MappingPlanner.CE,
+                                   MappingPlanner.QOS, MappingPlanner.QOS_PE,
+                                   MappingPlanner.QOS_PE_CLASS,
+                                   MappingPlanner.ACL, MappingPlanner.ACL,
+                                   MappingPlanner.QOS_CLASS,
+                                   MappingPlanner.QOS_CLASS),
+                     templates(ops));
+
+        Map<String, String> global = ops.get(5).getVariables();
+        assertEquals("GLOBAL-ssh", global.get("ACL_NAME"));
+        assertEquals("ce0", global.get("CE"));
+        assertEquals("10.0.0.0", global.get("SOURCE_IP_ADR"));
+        assertEquals("0.255.255.255", global.get("SOURCE_WMASK"));
+        assertEquals("any", global.get("DEST_IP_ADR"));
+
+        Map<String, String> custom = ops.get(6).getVariables();
+        assertEquals("volvo-web", custom.get("ACL_NAME"));
+        assertEquals("0.0.255.255", custom.get("DEST_WMASK"));
+
+        assertEquals("GLOBAL-ssh", ops.get(7).getVariables().
+                     get("MATCH_ENTRY"));
+        assertEquals("volvo-web", ops.get(8).getVariables().
+                     get("MATCH_ENTRY"));
+    }
+
+    @Test
+    public void endpointsSharingDevicesAreDeduplicated() {
+        ServiceSnapshot snapshot = new ServiceSnapshot(
+            "volvo", "12345", policy(),
+            Arrays.asList(endpoint("branch", "ce0", "192.168.0.0/24"),
+                          endpoint("office", "ce0", "192.168.1.0/24"),
+                          endpoint("store", "ce1", "192.168.2.0/24")),
+            new ArrayList<ServiceSnapshot.CustomMatch>());
+        List<List<TemplateOp>> plans =
+            MappingPlanner.plan(snapshot, snapshot.getEndpoints());
+        assertEquals(3, plans.size());
+
+        // Only the CE template differs between the two endpoints on ce0,
+        // in LOCAL_CE_ADR and the other ip-network variables
+        List<TemplateOp> office = new ArrayList<TemplateOp>(plans.get(1));
+        office.removeAll(plans.get(0));
+        assertEquals(Arrays.asList(MappingPlanner.CE), templates(office));
+
+        List<List<TemplateOp>> distinct = MappingPlanner.distinct(plans);
+        assertEquals(plans.get(0), distinct.get(0));
+        assertEquals(office, distinct.get(1));
+        assertEquals(plans.get(2), distinct.get(2));
+    }
+
+    @Test
+    public void largeServicesArePlannedInOrder() {
+        SyntheticNetwork network = new SyntheticNetwork(7);
+        List<TopologyIndex.Link> links = network.connections(200);
+        ServiceSnapshot snapshot = network.service(
+            "large", links, 200, network.qosPolicy("P", 3, 6), 2);
+        List<ServiceSnapshot.Endpoint> endpoints = snapshot.getEndpoints();
+        // The endpoints resolve to the same links through the topology
+        for (ServiceSnapshot.Endpoint e : endpoints) {
+            assertEquals(e.getLink().getConnection(),
+                         new InMemoryTopology(links).
+                         scan(e.getCeDevice()).getConnection());
+        }
+        List<List<TemplateOp>> parallel =
+            MappingPlanner.plan(snapshot, endpoints);
+        assertEquals(MappingPlanner.planEndpoints(snapshot, endpoints),
+                     parallel);
+    }
+}
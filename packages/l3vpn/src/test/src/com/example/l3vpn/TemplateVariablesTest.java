@@ -0,0 +1,55 @@
+package com.example.l3vpn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * The variables planned for each feature template are exactly the ones
+ * the template in packages/l3vpn/templates refers to.
+ */
+public class TemplateVariablesTest {
+
+    private static final Pattern VARIABLE =
+        Pattern.compile("\\$([A-Za-z_][A-Za-z0-9_]*)");
+
+    @Test
+    public void plannedVariablesMatchTemplates() throws IOException {
+        File dir = new File(System.getProperty("l3vpn.templates",
+                                               "../../templates"));
+        File[] templates = dir.listFiles();
+        assertNotNull("No templates in " + dir, templates);
+        int checked = 0;
+        for (File file : templates) {
+            String name = file.getName();
+            if (!name.endsWith(".xml")) {
+                continue;
+            }
+            String template = name.substring(0, name.length() - 4);
+            Set<String> used = new TreeSet<String>();
+            Matcher m = VARIABLE.matcher(new String(
+                Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            while (m.find()) {
+                used.add(m.group(1));
+            }
+            String[] planned = MappingPlanner.variableNames(template);
+            assertNotNull(template + " is not planned", planned);
+            assertArrayEquals(template,
+                              used.toArray(new String[used.size()]),
+                              planned);
+            checked++;
+        }
+        assertTrue(checked > 0);
+    }
+}